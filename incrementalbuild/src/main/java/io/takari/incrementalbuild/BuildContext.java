@@ -3,9 +3,13 @@ package io.takari.incrementalbuild;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.Executor;
 
 /**
  * Build context that supports 1..* input-output associations.
+ * <p>
+ * Build context is thread safe. Inputs can be processed, including associating outputs and adding
+ * messages, concurrently from multiple threads, as long as each input is processed by one thread.
  */
 public interface BuildContext {
 
@@ -47,6 +51,22 @@ public interface BuildContext {
   public Iterable<? extends Resource<File>> registerAndProcessInputs(File basedir,
       Collection<String> includes, Collection<String> excludes) throws IOException;
 
+  /**
+   * Registers inputs identified by {@code basedir} and {@code includes}/{@code excludes} ant
+   * patterns. Processes inputs that are new or modified since previous build concurrently, using
+   * the provided executor, and waits until all inputs are processed.
+   * <p>
+   * If processing of any input fails, the method waits for processing of the remaining inputs
+   * and rethrows the failure of the first failed input in registration order.
+   *
+   * @param executor runs processing of individual inputs, {@code null} uses a shared pool sized
+   *          to the number of available processors
+   * @returns processed inputs
+   */
+  public Iterable<? extends Resource<File>> registerAndProcessInputs(File basedir,
+      Collection<String> includes, Collection<String> excludes, Executor executor,
+      InputProcessor processor) throws IOException;
+
   public void markSkipExecution();
 
 }
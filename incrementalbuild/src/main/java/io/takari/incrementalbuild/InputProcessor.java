@@ -0,0 +1,19 @@
+package io.takari.incrementalbuild;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Processes a single new or modified input registered with {@link
+ * BuildContext#registerAndProcessInputs(File, java.util.Collection, java.util.Collection,
+ * java.util.concurrent.Executor, InputProcessor)}. Different inputs are processed concurrently,
+ * implementations must be thread safe.
+ */
+public interface InputProcessor {
+
+  /**
+   * Processes the input, i.e. creates outputs associated with the input and reports messages
+   * about the input.
+   */
+  public void process(Resource<File> input) throws IOException;
+}
@@ -0,0 +1,32 @@
+package io.takari.incrementalbuild;
+
+import java.io.Serializable;
+import java.lang.reflect.Member;
+
+/**
+ * Calculates digest of mojo configuration parameter values of a type not supported by incremental
+ * build implementation, or overrides how values of a supported type are digested. Parameter
+ * digests are persisted in build state and compared to digests of the previous build to detect
+ * configuration changes.
+ * <p>
+ * Implementations are JSR330 components, i.e. {@code @Named} classes, available to the plugin
+ * that uses incremental build. Digesters of more specific types take precedence over digesters of
+ * less specific types, custom digesters take precedence over built-in digesters.
+ *
+ * @see Incremental
+ */
+public interface ParameterDigester<T> {
+
+  /**
+   * Type of parameter values digested by this digester. Values of subtypes are digested too.
+   */
+  public Class<T> getType();
+
+  /**
+   * Returns digest of the parameter value, or {@code null} to ignore the value.
+   *
+   * @param member is the mojo field the value is injected into
+   * @param value is the parameter value, never {@code null}
+   */
+  public Serializable digest(Member member, T value);
+}
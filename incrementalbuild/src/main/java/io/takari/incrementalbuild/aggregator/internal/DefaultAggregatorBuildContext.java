@@ -42,7 +42,7 @@ public class DefaultAggregatorBuildContext extends AbstractBuildContext
   }
 
   private File registerOutput(File outputFile) {
-    outputFile = normalize(outputFile);
+    outputFile = normalizeCached(outputFile);
     if (isRegisteredResource(outputFile)) {
       // only allow single registrator of the same output. not sure why/if multuple will be needed
       throw new IllegalStateException("Output already registrered " + outputFile);
@@ -1,8 +1,80 @@
 package io.takari.incrementalbuild.maven.internal;
 
+import io.takari.incrementalbuild.spi.FileTreeCache;
+import io.takari.incrementalbuild.spi.FileWatcher;
+
+import java.io.IOException;
+
+import javax.inject.Inject;
 import javax.inject.Named;
 
+import org.apache.maven.execution.MavenSession;
+import org.eclipse.aether.SessionData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 @Named
 public class FilesystemWorkspace extends io.takari.incrementalbuild.spi.FilesystemWorkspace {
 
+  /**
+   * System property that enables directory listing cache shared by all mojo executions of the
+   * build session. Only safe to enable if all files walked by incremental build mojos are modified
+   * through incremental build API or added and removed by other tools, see {@link FileTreeCache}.
+   */
+  public static final String PROP_SESSION_CACHE = "incrementalbuild.sessionFileTreeCache";
+
+  /**
+   * System property that enables {@code DELTA} mode walks of project directories based on
+   * filesystem watch events recorded between builds. Only useful when Maven runs in a long-lived
+   * process that executes many builds, see {@link FileWatcher} for details.
+   */
+  public static final String PROP_WATCH = "incrementalbuild.watchFilesystem";
+
+  private static final transient Logger log = LoggerFactory.getLogger(FilesystemWorkspace.class);
+
+  private static final String SESSION_DATA_KEY = FileTreeCache.class.getName();
+
+  /**
+   * The watcher outlives build sessions, it is shared by all builds that run in the process.
+   */
+  private static class WatcherHolder {
+    static final FileWatcher WATCHER = newWatcher();
+
+    private static FileWatcher newWatcher() {
+      try {
+        return new FileWatcher();
+      } catch (IOException e) {
+        log.warn("Could not create filesystem watch service", e);
+        return null;
+      }
+    }
+  }
+
+  @Inject
+  public FilesystemWorkspace(MavenSession session) {
+    super(getCache(session));
+  }
+
+  private static FileTreeCache getCache(MavenSession session) {
+    if (!Boolean.getBoolean(PROP_SESSION_CACHE)) {
+      return null;
+    }
+    // this assumes that Aether repository session data does not change during reactor build
+    SessionData sessionData = session.getRepositorySession().getData();
+    if (sessionData.get(SESSION_DATA_KEY) == null) {
+      sessionData.set(SESSION_DATA_KEY, null, new FileTreeCache());
+    }
+    return (FileTreeCache) sessionData.get(SESSION_DATA_KEY);
+  }
+
+  /**
+   * Returns process-wide filesystem watcher or {@code null} if watching is not enabled or not
+   * supported.
+   */
+  static FileWatcher getWatcher() {
+    if (!Boolean.getBoolean(PROP_WATCH)) {
+      return null;
+    }
+    return WatcherHolder.WATCHER;
+  }
 }
@@ -1,6 +1,7 @@
 package io.takari.incrementalbuild.maven.internal;
 
 import io.takari.incrementalbuild.BuildContext;
+import io.takari.incrementalbuild.InputProcessor;
 import io.takari.incrementalbuild.Resource;
 import io.takari.incrementalbuild.ResourceMetadata;
 import io.takari.incrementalbuild.spi.BuildContextEnvironment;
@@ -9,6 +10,7 @@ import io.takari.incrementalbuild.spi.DefaultBuildContext;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.Executor;
 
 import javax.enterprise.inject.Typed;
 import javax.inject.Inject;
@@ -54,6 +56,14 @@ public class MavenBuildContext implements BuildContext {
     return provider.get().registerAndProcessInputs(basedir, includes, excludes);
   }
 
+  @Override
+  public Iterable<? extends Resource<File>> registerAndProcessInputs(File basedir,
+      Collection<String> includes, Collection<String> excludes, Executor executor,
+      InputProcessor processor) throws IOException {
+    return provider.get().registerAndProcessInputs(basedir, includes, excludes, executor,
+        processor);
+  }
+
   @Override
   public void markSkipExecution() {
     provider.get().markSkipExecution();
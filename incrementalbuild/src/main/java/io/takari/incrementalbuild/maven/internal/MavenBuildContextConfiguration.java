@@ -30,9 +30,9 @@ public class MavenBuildContextConfiguration implements BuildContextEnvironment {
   public MavenBuildContextConfiguration(ProjectWorkspace workspace,
       MavenIncrementalConventions conventions, MojoConfigurationDigester digester,
       MavenBuildContextFinalizer finalizer) throws IOException {
-    this.workspace = workspace;
     this.finalizer = finalizer;
     this.stateFile = conventions.getExecutionStateLocation();
+    this.workspace = workspace.watch(stateFile);
     this.parameters = digester.digest();
   }
 
@@ -1,5 +1,8 @@
 package io.takari.incrementalbuild.maven.internal;
 
+import io.takari.incrementalbuild.spi.FileWatcher;
+import io.takari.incrementalbuild.spi.FilesystemAccess;
+import io.takari.incrementalbuild.spi.WatchingWorkspace;
 import io.takari.incrementalbuild.workspace.Workspace;
 
 import java.io.File;
@@ -21,7 +24,7 @@ import org.apache.maven.project.MavenProject;
  */
 @Typed(ProjectWorkspace.class)
 @MojoExecutionScoped
-public class ProjectWorkspace implements Workspace {
+public class ProjectWorkspace implements Workspace, FilesystemAccess {
 
   private final Workspace workspace;
 
@@ -46,6 +49,19 @@ public class ProjectWorkspace implements Workspace {
     return filesystem;
   }
 
+  /**
+   * Returns workspace that walks project directories in {@code DELTA} mode when filesystem
+   * watching is enabled, see {@link FilesystemWorkspace#PROP_WATCH}. IDE workspaces are returned
+   * as is, they provide their own change tracking.
+   */
+  public ProjectWorkspace watch(File stateFile) {
+    FileWatcher watcher = FilesystemWorkspace.getWatcher();
+    if (watcher == null || !(workspace instanceof FilesystemWorkspace)) {
+      return this;
+    }
+    return new ProjectWorkspace(project, new WatchingWorkspace(watcher, stateFile), filesystem);
+  }
+
   @Override
   public Mode getMode() {
     return workspace.getMode();
@@ -76,6 +92,13 @@ public class ProjectWorkspace implements Workspace {
     return getWorkspace(file).newOutputStream(file);
   }
 
+  @Override
+  public boolean isFilesystem(File file) {
+    Workspace workspace = getWorkspace(file);
+    return workspace instanceof FilesystemAccess
+        && ((FilesystemAccess) workspace).isFilesystem(file);
+  }
+
   @Override
   public ResourceStatus getResourceStatus(File file, long lastModified, long length) {
     return getWorkspace(file).getResourceStatus(file, lastModified, length);
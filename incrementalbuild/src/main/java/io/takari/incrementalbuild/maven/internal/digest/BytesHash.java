@@ -13,8 +13,17 @@ class BytesHash implements Serializable {
     this.bytes = bytes;
   }
 
+  byte[] getBytes() {
+    return bytes;
+  }
+
   // TODO toString
 
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(bytes);
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (obj == this) {
@@ -1,18 +1,34 @@
 package io.takari.incrementalbuild.maven.internal.digest;
 
+import io.takari.incrementalbuild.spi.Digests;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -22,6 +38,8 @@ import javax.inject.Inject;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.execution.MavenSession;
 import org.eclipse.aether.SessionData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Specialized digester for Maven plugin classpath dependencies. Uses class file contents and immune
@@ -29,18 +47,40 @@ import org.eclipse.aether.SessionData;
  */
 class ClasspathDigester {
 
+  private static final transient Logger log = LoggerFactory.getLogger(ClasspathDigester.class);
+
+  /**
+   * System property that disables jar digest cache persisted in the local repository across
+   * builds, see {@link PersistentDigestCache}.
+   */
+  public static final String PROP_PERSISTENT_CACHE = "incrementalbuild.persistentClasspathCache";
+
   private static final String SESSION_DATA_KEY = ClasspathDigester.class.getName();
 
+  private static final String PERSISTENT_SESSION_DATA_KEY = PersistentDigestCache.class.getName();
+
+  private static final String PERSISTENT_CACHE_PATH =
+      ".cache/io.takari.incrementalbuild/jars.digest";
+
   private final ConcurrentMap<String, byte[]> cache;
 
+  private final PersistentDigestCache persistentCache;
+
   @Inject
   public ClasspathDigester(MavenSession session) {
     this.cache = getCache(session);
+    this.persistentCache = getPersistentCache(session);
   }
 
   /** for testing purposes */
   ClasspathDigester(ConcurrentMap<String, byte[]> cache) {
+    this(cache, null);
+  }
+
+  /** for testing purposes */
+  ClasspathDigester(ConcurrentMap<String, byte[]> cache, PersistentDigestCache persistentCache) {
     this.cache = cache;
+    this.persistentCache = persistentCache;
   }
 
   @SuppressWarnings("unchecked")
@@ -53,17 +93,75 @@ class ClasspathDigester {
     return (ConcurrentMap<String, byte[]>) sessionData.get(SESSION_DATA_KEY);
   }
 
+  private static PersistentDigestCache getPersistentCache(MavenSession session) {
+    if (!Boolean.parseBoolean(System.getProperty(PROP_PERSISTENT_CACHE, "true"))) {
+      return null;
+    }
+    File basedir = session.getRepositorySession().getLocalRepository().getBasedir();
+    if (basedir == null) {
+      return null;
+    }
+    // loaded once per session, jar files are not expected to change during reactor build
+    SessionData sessionData = session.getRepositorySession().getData();
+    if (sessionData.get(PERSISTENT_SESSION_DATA_KEY) == null) {
+      File file = new File(basedir, PERSISTENT_CACHE_PATH);
+      sessionData.set(PERSISTENT_SESSION_DATA_KEY, null, PersistentDigestCache.load(file));
+    }
+    return (PersistentDigestCache) sessionData.get(PERSISTENT_SESSION_DATA_KEY);
+  }
+
+  private static class ExecutorHolder {
+    /**
+     * Bounded executor shared by all classpath digesters. Worker threads are daemon threads and are
+     * not kept alive when idle.
+     */
+    static final ExecutorService EXECUTOR;
+
+    static {
+      int threads = Runtime.getRuntime().availableProcessors();
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "classpath-digester-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+      EXECUTOR = executor;
+    }
+  }
+
   private static class JarDigester implements Callable<byte[]> {
 
     private final File file;
 
-    public JarDigester(File file) {
+    private final PersistentDigestCache persistentCache;
+
+    public JarDigester(File file, PersistentDigestCache persistentCache) {
       this.file = file;
+      this.persistentCache = persistentCache;
     }
 
     @Override
     public byte[] call() throws IOException {
-      MessageDigest digester = SHA1Digester.newInstance();
+      if (persistentCache == null) {
+        return digest();
+      }
+      PersistentDigestCache.Key key = PersistentDigestCache.Key.of(file);
+      byte[] hash = persistentCache.get(key);
+      if (hash == null) {
+        hash = digest();
+        persistentCache.put(key, hash);
+      }
+      return hash;
+    }
+
+    private byte[] digest() throws IOException {
+      MessageDigest digester = Digests.newInstance();
       try {
         digestZip(digester, file);
       } catch (ZipException e) {
@@ -84,7 +182,7 @@ class ClasspathDigester {
 
     @Override
     public byte[] call() throws IOException {
-      MessageDigest digester = SHA1Digester.newInstance();
+      MessageDigest digester = Digests.newInstance();
 
       TreeSet<File> sorted = new TreeSet<File>();
       lsLR(directory, sorted);
@@ -110,31 +208,73 @@ class ClasspathDigester {
   }
 
   public Serializable digest(List<Artifact> artifacts) throws IOException {
-    MessageDigest digester = SHA1Digester.newInstance();
+    // digest cache misses concurrently, combine digests in artifact order
+    Map<String, Future<byte[]>> misses = new LinkedHashMap<>();
     for (Artifact artifact : artifacts) {
-      File file = artifact.getFile();
       String cacheKey = getArtifactKey(artifact);
-      byte[] cached = cache.get(cacheKey);
-      if (cached == null) {
-        byte[] hash;
-        if (file.isFile()) {
-          hash = new JarDigester(file).call();
-        } else if (file.isDirectory()) {
-          hash = new ClassDirectoryDigester(file).call();
-        } else {
-          // does not exist, use token empty array to avoid rechecking
-          hash = new byte[0];
-        }
-        cached = cache.putIfAbsent(cacheKey, hash);
-        if (cached == null) {
-          cached = hash;
-        }
+      if (!cache.containsKey(cacheKey) && !misses.containsKey(cacheKey)) {
+        misses.put(cacheKey, ExecutorHolder.EXECUTOR.submit(newDigester(artifact.getFile())));
+      }
+    }
+    try {
+      for (Map.Entry<String, Future<byte[]>> miss : misses.entrySet()) {
+        cache.putIfAbsent(miss.getKey(), getDigest(miss.getValue()));
+      }
+    } finally {
+      for (Future<byte[]> future : misses.values()) {
+        future.cancel(true);
+      }
+    }
+    if (persistentCache != null && !misses.isEmpty()) {
+      try {
+        persistentCache.store();
+      } catch (IOException e) {
+        log.debug("Could not write classpath digest cache", e);
       }
-      digester.update(cached);
+    }
+    MessageDigest digester = Digests.newInstance();
+    for (Artifact artifact : artifacts) {
+      digester.update(cache.get(getArtifactKey(artifact)));
     }
     return new BytesHash(digester.digest());
   }
 
+  private Callable<byte[]> newDigester(File file) {
+    if (file.isFile()) {
+      return new JarDigester(file, persistentCache);
+    } else if (file.isDirectory()) {
+      return new ClassDirectoryDigester(file);
+    }
+    // does not exist, use token empty array to avoid rechecking
+    return new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        return new byte[0];
+      }
+    };
+  }
+
+  private static byte[] getDigest(Future<byte[]> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
   private String getArtifactKey(Artifact artifact) {
     StringBuilder sb = new StringBuilder();
     sb.append(artifact.getGroupId());
@@ -166,6 +306,10 @@ class ClasspathDigester {
     }
   }
 
+  /**
+   * Digests sorted zip central directory, i.e. names, CRC-32 checksums and uncompressed sizes of
+   * all entries. Entry contents are covered by their checksums and are not inflated.
+   */
   static void digestZip(MessageDigest digester, File file) throws IOException {
     ZipFile zip = new ZipFile(file);
     try {
@@ -181,13 +325,12 @@ class ClasspathDigester {
       while (entries.hasMoreElements()) {
         sorted.add(entries.nextElement());
       }
+      ByteBuffer buf = ByteBuffer.allocate(16);
       for (ZipEntry entry : sorted) {
-        InputStream is = zip.getInputStream(entry);
-        try {
-          digest(digester, is);
-        } finally {
-          is.close();
-        }
+        digester.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+        ((Buffer) buf).clear();
+        buf.putLong(entry.getCrc()).putLong(entry.getSize());
+        digester.update(buf.array());
       }
     } finally {
       zip.close();
@@ -2,19 +2,29 @@ package io.takari.incrementalbuild.maven.internal.digest;
 
 import io.takari.incrementalbuild.Incremental;
 import io.takari.incrementalbuild.Incremental.Configuration;
+import io.takari.incrementalbuild.ParameterDigester;
+import io.takari.incrementalbuild.spi.Digests;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Member;
 import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -22,6 +32,7 @@ import java.util.TreeMap;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.repository.ArtifactRepository;
 import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Model;
 import org.apache.maven.model.io.xpp3.MavenXpp3Writer;
 import org.apache.maven.project.MavenProject;
 
@@ -43,50 +54,111 @@ class Digesters {
   }
 
   static interface Digester<T> {
-    Serializable digest(Member member, T value);
+    Serializable digest(Digesters digesters, Member member, T value);
   }
 
   private static final Map<Class<?>, Digester<?>> DIGESTERS;
 
+  private static final Digester<Object> DIGESTER_UNSUPPORTED = new Digester<Object>() {
+    @Override
+    public Serializable digest(Digesters digesters, Member member, Object value) {
+      throw new UnsupportedParameterTypeException(value.getClass());
+    }
+  };
+
+  /**
+   * Built-in digesters of parameter value classes, resolved once per class.
+   */
+  private static final ClassValue<Digester<?>> BUILTIN = new ClassValue<Digester<?>>() {
+    @Override
+    protected Digester<?> computeValue(Class<?> type) {
+      for (Map.Entry<Class<?>, Digester<?>> entry : DIGESTERS.entrySet()) {
+        if (entry.getKey().isAssignableFrom(type)) {
+          return entry.getValue();
+        }
+      }
+      return DIGESTER_UNSUPPORTED;
+    }
+  };
+
 
   private static final Digester<Serializable> DIGESTER_ECHO = new Digester<Serializable>() {
     @Override
-    public Serializable digest(Member member, Serializable value) {
+    public Serializable digest(Digesters digesters, Member member, Serializable value) {
       return value;
     }
   };
 
+  private static final String CONTEXT_MODEL_DIGEST = Digesters.class.getName() + ".modelDigest";
+
+  private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  };
+
+  private static class ModelDigest {
+    final Model model;
+
+    /**
+     * Copy of model properties at the time the model was digested.
+     */
+    final Map<Object, Object> properties;
+
+    final BytesHash digest;
+
+    ModelDigest(Model model, Map<Object, Object> properties, BytesHash digest) {
+      this.model = model;
+      this.properties = properties;
+      this.digest = digest;
+    }
+
+    boolean isCurrent(Model model) {
+      return this.model == model && properties.equals(model.getProperties());
+    }
+  }
+
   private static final Digester<MavenProject> DIGESTER_MAVENPROJECT = new Digester<MavenProject>() {
     @Override
-    public Serializable digest(Member member, MavenProject value) {
+    public Serializable digest(Digesters digesters, Member member, MavenProject value) {
       if (getConfiguration(member) == null) {
         throw new IllegalArgumentException("Explicit @Incremental required: " + member);
       }
 
-      final MessageDigest digester = SHA1Digester.newInstance();
+      // the digest is reused by later mojo executions of the same project as long as model
+      // properties did not change. mojos like buildnumber or build-helper set project properties
+      // in place during the build, other in-place model changes are not expected
+      Model model = value.getModel();
+      Object cached = value.getContextValue(CONTEXT_MODEL_DIGEST);
+      if (cached instanceof ModelDigest && ((ModelDigest) cached).isCurrent(model)) {
+        return ((ModelDigest) cached).digest;
+      }
+      Map<Object, Object> properties = new HashMap<>(model.getProperties());
+
+      MessageDigest digester = Digests.newInstance();
 
       // effective pom.xml defines project configuration, rebuild whenever project configuration
       // changes we can't be more specific here because mojo can access entire project model, not
       // just its own configuration
-      try {
-        new MavenXpp3Writer().write(new OutputStream() {
-          @Override
-          public void write(int b) throws IOException {
-            digester.update((byte) b);
-          }
-        }, value.getModel());
+      try (OutputStream os =
+          new BufferedOutputStream(new DigestOutputStream(NULL_OUTPUT_STREAM, digester), 8192)) {
+        new MavenXpp3Writer().write(os, model);
       } catch (IOException e) {
         // can't happen
       }
 
-      return new BytesHash(digester.digest());
+      BytesHash digest = new BytesHash(digester.digest());
+      value.setContextValue(CONTEXT_MODEL_DIGEST, new ModelDigest(model, properties, digest));
+      return digest;
     }
   };
 
   private static final Digester<MavenSession> DIGESTER_MAVENSESSION = new Digester<MavenSession>() {
     @Override
     @SuppressWarnings("deprecation")
-    public Serializable digest(Member member, MavenSession session) {
+    public Serializable digest(Digesters digesters, Member member, MavenSession session) {
       if (getConfiguration(member) == null) {
         throw new IllegalArgumentException("Explicit @Incremental required: " + member);
       }
@@ -119,7 +191,7 @@ class Digesters {
         }
       }
 
-      MessageDigest digester = SHA1Digester.newInstance();
+      MessageDigest digester = Digests.newInstance();
 
       for (Map.Entry<String, String> property : executionProperties.entrySet()) {
         digester.update(property.getKey().getBytes(UTF_8));
@@ -130,24 +202,101 @@ class Digesters {
     }
   };
 
+  /**
+   * Folds element digests into single hash, so configuration storage and comparison cost does not
+   * depend on collection size. Element order is significant.
+   */
   private static final Digester<Collection<?>> DIGESTER_COLLECTION = new Digester<Collection<?>>() {
     @Override
-    public Serializable digest(Member member, Collection<?> collection) {
-      // TODO consider collapsing to single SHA1 hash
-      ArrayList<Serializable> digest = new ArrayList<Serializable>();
+    public Serializable digest(Digesters digesters, Member member, Collection<?> collection) {
+      MessageDigest digester = Digests.newInstance();
       for (Object element : collection) {
-        Serializable elementDigest = rawtypesDigest(member, element);
-        if (elementDigest != null) {
-          digest.add(elementDigest);
+        update(digester, digesters.nullableDigest(member, element));
+      }
+      return new BytesHash(digester.digest());
+    }
+  };
+
+  /**
+   * Folds entry digests into single hash. Entry order is not significant.
+   */
+  private static final Digester<Map<?, ?>> DIGESTER_MAP = new Digester<Map<?, ?>>() {
+    @Override
+    public Serializable digest(Digesters digesters, Member member, Map<?, ?> map) {
+      MessageDigest digester = Digests.newInstance();
+      List<byte[]> entries = new ArrayList<byte[]>(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        update(digester, digesters.nullableDigest(member, entry.getKey()));
+        update(digester, digesters.nullableDigest(member, entry.getValue()));
+        entries.add(digester.digest());
+      }
+      Collections.sort(entries, BYTES_ORDER);
+      for (byte[] entry : entries) {
+        digester.update(entry);
+      }
+      return new BytesHash(digester.digest());
+    }
+  };
+
+  private static final Comparator<byte[]> BYTES_ORDER = new Comparator<byte[]>() {
+    @Override
+    public int compare(byte[] a, byte[] b) {
+      for (int i = 0; i < a.length && i < b.length; i++) {
+        if (a[i] != b[i]) {
+          return (a[i] & 0xff) - (b[i] & 0xff);
         }
       }
-      return digest;
+      return a.length - b.length;
     }
   };
 
+  private static final byte TAG_NULL = 0;
+
+  private static final byte TAG_BYTES = 1;
+
+  private static final byte TAG_STRING = 2;
+
+  private static final byte TAG_FILE = 3;
+
+  private static final byte TAG_SERIALIZABLE = 4;
+
+  /**
+   * Updates the digester with unambiguous encoding of the element digest.
+   */
+  private static void update(MessageDigest digester, Serializable digest) {
+    if (digest == null) {
+      digester.update(TAG_NULL);
+    } else if (digest instanceof BytesHash) {
+      update(digester, TAG_BYTES, ((BytesHash) digest).getBytes());
+    } else if (digest instanceof String) {
+      update(digester, TAG_STRING, ((String) digest).getBytes(UTF_8));
+    } else if (digest instanceof File) {
+      update(digester, TAG_FILE, ((File) digest).getPath().getBytes(UTF_8));
+    } else {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      try (ObjectOutputStream os = new ObjectOutputStream(buf)) {
+        os.writeObject(digest);
+      } catch (IOException e) {
+        // not serializable member or parameter value
+        throw new UnsupportedParameterTypeException(digest.getClass());
+      }
+      update(digester, TAG_SERIALIZABLE, buf.toByteArray());
+    }
+  }
+
+  private static void update(MessageDigest digester, byte tag, byte[] bytes) {
+    digester.update(tag);
+    int length = bytes.length;
+    digester.update((byte) (length >>> 24));
+    digester.update((byte) (length >>> 16));
+    digester.update((byte) (length >>> 8));
+    digester.update((byte) length);
+    digester.update(bytes);
+  }
+
   private static Digester<Artifact> DIGESTER_ARTIFACT = new Digester<Artifact>() {
     @Override
-    public Serializable digest(Member member, Artifact value) {
+    public Serializable digest(Digesters digesters, Member member, Artifact value) {
       return value.getFile();
     }
   };
@@ -155,7 +304,7 @@ class Digesters {
   private static Digester<ArtifactRepository> DIGESTER_ARTIFACTREPOSITORY =
       new Digester<ArtifactRepository>() {
         @Override
-        public Serializable digest(Member member, ArtifactRepository value) {
+        public Serializable digest(Digesters digesters, Member member, ArtifactRepository value) {
           return value.getUrl();
         }
       };
@@ -169,12 +318,24 @@ class Digesters {
     digesters.put(MavenSession.class, DIGESTER_MAVENSESSION);
     //
     digesters.put(Collection.class, DIGESTER_COLLECTION);
+    digesters.put(Map.class, DIGESTER_MAP);
     //
     digesters.put(Serializable.class, DIGESTER_ECHO);
     DIGESTERS = Collections.unmodifiableMap(digesters);
   }
 
-  public static Serializable digest(Member member, Object value) {
+  private final List<ParameterDigester<?>> custom;
+
+  /**
+   * Custom or built-in digesters of parameter value classes, resolved once per class.
+   */
+  private final Map<Class<?>, Digester<?>> resolved = new HashMap<Class<?>, Digester<?>>();
+
+  public Digesters(List<ParameterDigester<?>> custom) {
+    this.custom = custom;
+  }
+
+  public Serializable digest(Member member, Object value) {
     Incremental configuration = getConfiguration(member);
     if (configuration != null && configuration.configuration() == Configuration.ignore) {
       return null; // no digest, ignore
@@ -190,22 +351,45 @@ class Digesters {
     return null;
   }
 
+  private Serializable nullableDigest(Member member, Object value) {
+    return value != null ? rawtypesDigest(member, value) : null;
+  }
+
   @SuppressWarnings({"unchecked", "rawtypes"})
-  private static Serializable rawtypesDigest(Member member, Object value) {
-    return ((Digester) getDigester(value)).digest(member, value);
+  private Serializable rawtypesDigest(Member member, Object value) {
+    return ((Digester) getDigester(value.getClass())).digest(this, member, value);
   }
 
-  private static Digester<?> getDigester(Object value) {
-    Digester<?> digester = null;
-    for (Map.Entry<Class<?>, Digester<?>> entry : DIGESTERS.entrySet()) {
-      if (entry.getKey().isInstance(value)) {
-        digester = entry.getValue();
-        break;
-      }
+  private Digester<?> getDigester(Class<?> type) {
+    if (custom.isEmpty()) {
+      return BUILTIN.get(type);
     }
+    Digester<?> digester = resolved.get(type);
     if (digester == null) {
-      throw new UnsupportedParameterTypeException(value.getClass());
+      ParameterDigester<?> match = null;
+      for (ParameterDigester<?> candidate : custom) {
+        if (candidate.getType().isAssignableFrom(type)
+            && (match == null || match.getType().isAssignableFrom(candidate.getType()))) {
+          match = candidate;
+        }
+      }
+      digester = match != null ? new CustomDigester(match) : BUILTIN.get(type);
+      resolved.put(type, digester);
     }
     return digester;
   }
+
+  private static class CustomDigester implements Digester<Object> {
+    private final ParameterDigester<?> digester;
+
+    CustomDigester(ParameterDigester<?> digester) {
+      this.digester = digester;
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Serializable digest(Digesters digesters, Member member, Object value) {
+      return ((ParameterDigester) digester).digest(member, value);
+    }
+  }
 }
@@ -1,11 +1,16 @@
 package io.takari.incrementalbuild.maven.internal.digest;
 
+import io.takari.incrementalbuild.Incremental;
+import io.takari.incrementalbuild.Incremental.Configuration;
+import io.takari.incrementalbuild.ParameterDigester;
 import io.takari.incrementalbuild.maven.internal.digest.Digesters.UnsupportedParameterTypeException;
 
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -30,20 +35,62 @@ import org.codehaus.plexus.util.xml.Xpp3Dom;
 @MojoExecutionScoped
 public class MojoConfigurationDigester {
 
+  /**
+   * Configuration parameters of mojo implementation classes, by parameter name. Computed once per
+   * class and released together with the class, i.e. when plugin realm is disposed.
+   */
+  private static final ClassValue<Map<String, Parameter>> PARAMETERS =
+      new ClassValue<Map<String, Parameter>>() {
+        @Override
+        protected Map<String, Parameter> computeValue(Class<?> type) {
+          Map<String, Parameter> parameters = new HashMap<String, Parameter>();
+          for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+            for (Field field : clazz.getDeclaredFields()) {
+              // subclass fields hide superclass fields with the same name
+              if (!parameters.containsKey(field.getName())) {
+                parameters.put(field.getName(), new Parameter(field));
+              }
+            }
+          }
+          return Collections.unmodifiableMap(parameters);
+        }
+      };
+
+  private static class Parameter {
+    final Field field;
+
+    final boolean ignored;
+
+    Parameter(Field field) {
+      Incremental configuration = Digesters.getConfiguration(field);
+      this.field = field;
+      this.ignored =
+          configuration != null && configuration.configuration() == Configuration.ignore;
+    }
+  }
+
   private final ClasspathDigester classpathDigester;
 
+  private final Digesters digesters;
+
   private final MavenSession session;
   private final MavenProject project;
   private final MojoExecution execution;
 
 
-  @Inject
   public MojoConfigurationDigester(MavenSession session, MavenProject project,
       MojoExecution execution) {
+    this(session, project, execution, Collections.<ParameterDigester<?>>emptyList());
+  }
+
+  @Inject
+  public MojoConfigurationDigester(MavenSession session, MavenProject project,
+      MojoExecution execution, List<ParameterDigester<?>> digesters) {
     this.session = session;
     this.project = project;
     this.execution = execution;
     this.classpathDigester = new ClasspathDigester(session);
+    this.digesters = new Digesters(digesters);
   }
 
   public Map<String, Serializable> digest() throws IOException {
@@ -57,11 +104,14 @@ public class MojoConfigurationDigester {
       List<String> errors = new ArrayList<String>();
       PlexusConfiguration configuration = new XmlPlexusConfiguration(dom);
       ExpressionEvaluator evaluator = new PluginParameterExpressionEvaluator(session, execution);
+      Map<String, Parameter> parameters =
+          PARAMETERS.get(execution.getMojoDescriptor().getImplementationClass());
       for (PlexusConfiguration child : configuration.getChildren()) {
         String name = fromXML(child.getName());
         try {
-          Field field = getField(execution.getMojoDescriptor().getImplementationClass(), name);
-          if (field != null) {
+          Parameter parameter = parameters.get(name);
+          // ignored parameters are not evaluated
+          if (parameter != null && !parameter.ignored) {
             String expression = child.getValue();
             if (expression == null) {
               expression = getChildrenXml(child);
@@ -72,7 +122,7 @@ public class MojoConfigurationDigester {
             if (expression != null) {
               Object value = evaluator.evaluate(expression);
               if (value != null) {
-                Serializable digest = Digesters.digest(field, value);
+                Serializable digest = digesters.digest(parameter.field, value);
                 if (digest != null) {
                   result.put("mojo.parameter." + name, digest);
                 }
@@ -128,18 +178,6 @@ public class MojoConfigurationDigester {
     }
   }
 
-  private Field getField(Class<?> clazz, String name) {
-    for (Field field : clazz.getDeclaredFields()) {
-      if (name.equals(field.getName())) {
-        return field;
-      }
-    }
-    if (clazz.getSuperclass() != null) {
-      return getField(clazz.getSuperclass(), name);
-    }
-    return null;
-  }
-
   // first-name --> firstName, see
   // org.codehaus.plexus.component.configurator.converters.AbstractConfigurationConverter.fromXML(String)
   protected String fromXML(final String elementName) {
@@ -0,0 +1,179 @@
+package io.takari.incrementalbuild.maven.internal.digest;
+
+import io.takari.incrementalbuild.spi.Digests;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Jar file digests persisted across builds. Digests are keyed by canonical jar file path and are
+ * reused only if the jar file length, last modified timestamp and, where the filesystem provides
+ * one, file key (i.e. inode) did not change since the digest was calculated.
+ * <p>
+ * Instances are thread-safe. The cache file is rewritten atomically, concurrent builds may lose
+ * each other's updates but never read partially written cache.
+ */
+class PersistentDigestCache {
+
+  private static final transient Logger log = LoggerFactory
+      .getLogger(PersistentDigestCache.class);
+
+  /**
+   * Cache file format version. Must be incremented whenever jar digest algorithm changes. Digest
+   * algorithm name, see {@link Digests#getAlgorithm()}, is stored in the cache file too.
+   */
+  private static final int VERSION = 3;
+
+  /**
+   * Jar files modified less than this many milliseconds before they were digested are not cached,
+   * because further modifications may not change file timestamp on filesystems with coarse
+   * timestamp resolution.
+   */
+  private static final long RACY_INTERVAL = 2000;
+
+  static final class Key {
+    final String path;
+
+    final long length;
+
+    final long lastModified;
+
+    final String fileKey;
+
+    Key(String path, long length, long lastModified, String fileKey) {
+      this.path = path;
+      this.length = length;
+      this.lastModified = lastModified;
+      this.fileKey = fileKey;
+    }
+
+    public static Key of(File file) throws IOException {
+      Path path = file.getCanonicalFile().toPath();
+      BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+      Object fileKey = attrs.fileKey();
+      return new Key(path.toString(), attrs.size(), attrs.lastModifiedTime().toMillis(),
+          fileKey != null ? fileKey.toString() : "");
+    }
+
+    boolean isUnmodified(Key other) {
+      return length == other.length && lastModified == other.lastModified
+          && fileKey.equals(other.fileKey);
+    }
+  }
+
+  private static final class Entry {
+    final Key key;
+
+    final byte[] digest;
+
+    Entry(Key key, byte[] digest) {
+      this.key = key;
+      this.digest = digest;
+    }
+  }
+
+  private final File file;
+
+  private final ConcurrentMap<String, Entry> entries;
+
+  private volatile boolean dirty;
+
+  private PersistentDigestCache(File file, ConcurrentMap<String, Entry> entries) {
+    this.file = file;
+    this.entries = entries;
+  }
+
+  /**
+   * Loads the cache from the file. Missing, corrupted or incompatible cache file results in empty
+   * cache.
+   */
+  public static PersistentDigestCache load(File file) {
+    ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    try (DataInputStream is =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (is.readInt() == VERSION && Digests.getAlgorithm().equals(is.readUTF())) {
+        int size = is.readInt();
+        for (int i = 0; i < size; i++) {
+          Key key = new Key(is.readUTF(), is.readLong(), is.readLong(), is.readUTF());
+          byte[] digest = new byte[is.readUnsignedShort()];
+          is.readFully(digest);
+          entries.put(key.path, new Entry(key, digest));
+        }
+      }
+    } catch (FileNotFoundException e) {
+      // first build with this cache file
+    } catch (IOException e) {
+      log.debug("Could not read classpath digest cache {}", file, e);
+      entries.clear();
+    }
+    return new PersistentDigestCache(file, entries);
+  }
+
+  /**
+   * Returns cached digest of the jar file or {@code null} if the jar file has not been digested or
+   * changed since it was digested.
+   */
+  public byte[] get(Key key) {
+    Entry entry = entries.get(key.path);
+    return entry != null && entry.key.isUnmodified(key) ? entry.digest : null;
+  }
+
+  public void put(Key key, byte[] digest) {
+    if (System.currentTimeMillis() - key.lastModified >= RACY_INTERVAL) {
+      entries.put(key.path, new Entry(key, digest));
+      dirty = true;
+    }
+  }
+
+  /**
+   * Writes the cache to the file if it changed since it was loaded or last stored.
+   */
+  public synchronized void store() throws IOException {
+    if (!dirty) {
+      return;
+    }
+    dirty = false;
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Could not create directory " + parent);
+    }
+    // unique temporary file, the cache file can be updated by concurrent builds
+    Path tmpFile = Files.createTempFile(parent.toPath(), file.getName(), ".tmp");
+    try {
+      Entry[] snapshot = entries.values().toArray(new Entry[0]);
+      try (DataOutputStream os =
+          new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+        os.writeInt(VERSION);
+        os.writeUTF(Digests.getAlgorithm());
+        os.writeInt(snapshot.length);
+        for (Entry entry : snapshot) {
+          os.writeUTF(entry.key.path);
+          os.writeLong(entry.key.length);
+          os.writeLong(entry.key.lastModified);
+          os.writeUTF(entry.key.fileKey);
+          os.writeShort(entry.digest.length);
+          os.write(entry.digest);
+        }
+      }
+      Files.move(tmpFile, file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmpFile);
+    }
+  }
+}
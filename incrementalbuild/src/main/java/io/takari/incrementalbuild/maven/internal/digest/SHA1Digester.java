@@ -1,15 +0,0 @@
-package io.takari.incrementalbuild.maven.internal.digest;
-
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
-class SHA1Digester {
-
-  public static MessageDigest newInstance() {
-    try {
-      return MessageDigest.getInstance("SHA1");
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalStateException("Unsupported JVM", e);
-    }
-  }
-}
@@ -1,10 +1,18 @@
 package io.takari.incrementalbuild.spi;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -12,12 +20,26 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.takari.incrementalbuild.InputProcessor;
 import io.takari.incrementalbuild.MessageSeverity;
 import io.takari.incrementalbuild.ResourceMetadata;
 import io.takari.incrementalbuild.ResourceStatus;
@@ -27,40 +49,122 @@ import io.takari.incrementalbuild.workspace.Workspace.Mode;
 
 /**
  * Tracks build input and output resources and associations among them.
+ * <p>
+ * Build contexts are thread safe. Registered resources can be processed, outputs associated and
+ * messages and attributes recorded concurrently from multiple threads, as long as each resource
+ * is processed by a single thread. Build state is kept in concurrent maps, compound updates of the
+ * state synchronize on the state. Commit must not run concurrently with processing.
  */
 public abstract class AbstractBuildContext {
+
+  /**
+   * System property that enables incremental build state journal and specifies maximum journal
+   * size in bytes. When enabled, builds append changes to the state file and the complete state is
+   * only rewritten when the journal grows past the specified size.
+   */
+  public static final String PROP_STATE_JOURNAL_SIZE = "incrementalbuild.stateJournalSize";
+
+  /**
+   * System property that enables input file contents digests. When enabled, input files with
+   * changed timestamp but the same length and contents as during the previous build, for example
+   * after version control branch switch, are considered unmodified.
+   */
+  public static final String PROP_CONTENT_HASH = "incrementalbuild.contentHash";
+
+  /**
+   * System property that enables racy timestamp protection. When enabled, inputs modified within
+   * filesystem timestamp granularity before the build state is stored are rechecked by the next
+   * build, because further modifications made within the same timestamp granularity may not change
+   * file timestamp. Rechecked inputs are considered modified, or have their contents compared if
+   * {@link #PROP_CONTENT_HASH} is enabled, which also enables this protection.
+   */
+  public static final String PROP_RACY_TIMESTAMPS = "incrementalbuild.racyTimestamps";
+
+  /**
+   * System property that specifies percentage of registered inputs checked for changes during
+   * build commit, {@code 100} by default. Inputs changed after they were registered cause
+   * "Unexpected input change" build failure, because their changes may not have been processed.
+   * Lower values randomly sample inputs, {@code 0} disables the check, which is only safe if no
+   * inputs are modified while the build runs.
+   */
+  public static final String PROP_INPUT_CHECK = "incrementalbuild.inputChangeCheck";
+
+  private static final boolean WINDOWS = File.separatorChar == '\\';
+
   protected final Logger log = LoggerFactory.getLogger(getClass());
 
   protected final Workspace workspace;
 
   private final File stateFile;
 
+  /**
+   * Maximum state journal size in bytes, negative value disables the journal.
+   */
+  private final long stateJournalSize;
+
+  /**
+   * Percentage of inputs checked for changes during commit, see {@link #PROP_INPUT_CHECK}.
+   */
+  private final int inputCheck;
+
+  /**
+   * Whether input file contents is digested, see {@link #PROP_CONTENT_HASH}.
+   */
+  private final boolean contentHash;
+
+  /**
+   * Whether racily clean inputs are marked, see {@link #PROP_RACY_TIMESTAMPS}.
+   */
+  private final boolean racyTimestamps;
+
   protected final DefaultBuildContextState state;
 
   protected final DefaultBuildContextState oldState;
 
   /**
-   * Previous build state does not exist, cannot be read or configuration has changed. When
-   * escalated, all input files are considered require processing.
+   * Previous build state does not exist or build configuration has changed since previous build.
+   */
+  private final boolean configurationChanged;
+
+  /**
+   * Workspace passed to the constructor, before escalation.
+   */
+  private final Workspace baseWorkspace;
+
+  /**
+   * Presence check of outputs of the previous build, runs concurrently with input registration.
+   * {@code null} if escalation was decided when this build context was created.
    */
-  private final boolean escalated;
+  private final ForkJoinTask<File> outputCheck;
+
+  /**
+   * Escalation decision, {@code null} until {@link #outputCheck} completes.
+   */
+  private volatile Escalation escalation;
 
   /**
    * Indicates that no further modifications to this build context are allowed.
    */
-  private boolean closed;
+  private volatile boolean closed;
 
   /**
    * Resources known to be deleted since previous build. Includes both resources reported as deleted
    * by Workspace and resources explicitly delete through this build context.
    */
-  private final Set<File> deletedResources = new HashSet<>();
+  private final Set<File> deletedResources =
+      Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
 
   /**
    * Resources selected for processing during this build. This includes resources created, changed
    * and deleted through this build context.
    */
-  private final Set<Object> processedResources = new HashSet<>();
+  private final Set<Object> processedResources =
+      Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+  /**
+   * Canonical form of directories of normalized files, see {@link #normalizeCached(File)}.
+   */
+  private final Map<File, File> canonicalDirectories = new ConcurrentHashMap<>();
 
   protected AbstractBuildContext(BuildContextEnvironment env) {
     this(env.getWorkspace(), env.getStateFile(), env.getParameters(), env.getFinalizer());
@@ -78,24 +182,98 @@ public abstract class AbstractBuildContext {
     }
 
     this.stateFile = stateFile;
+    this.stateJournalSize = Long.getLong(PROP_STATE_JOURNAL_SIZE, -1L).longValue();
+    this.inputCheck = Integer.getInteger(PROP_INPUT_CHECK, 100).intValue();
+    this.contentHash = Boolean.getBoolean(PROP_CONTENT_HASH);
+    this.racyTimestamps = contentHash || Boolean.getBoolean(PROP_RACY_TIMESTAMPS);
     this.state = DefaultBuildContextState.withConfiguration(configuration);
     this.oldState = DefaultBuildContextState.loadFrom(stateFile);
 
-    final boolean configurationChanged = getConfigurationChanged();
+    this.configurationChanged = getConfigurationChanged();
+    this.baseWorkspace = workspace;
     if (workspace.getMode() == Mode.ESCALATED) {
-      this.escalated = true;
-      this.workspace = workspace;
+      this.outputCheck = null;
+      this.escalation = new Escalation(true, workspace);
     } else if (workspace.getMode() == Mode.SUPPRESSED) {
-      this.escalated = false;
-      this.workspace = workspace;
-    } else if (configurationChanged || !isPresent(oldState.getOutputs())) {
-      this.escalated = true;
-      this.workspace = workspace.escalate();
+      this.outputCheck = null;
+      this.escalation = new Escalation(false, workspace);
+    } else if (configurationChanged) {
+      this.outputCheck = null;
+      this.escalation = new Escalation(true, workspace.escalate());
+    } else if (oldState.getOutputs().isEmpty()) {
+      this.outputCheck = null;
+      this.escalation = new Escalation(false, workspace);
     } else {
-      this.escalated = false;
+      // in some scenarios, notable classpath change caused by changes to pom.xml,
+      // jdt builder deletes all files from target/classes directory during incremental workspace
+      // build. this behaviour is not communicated to m2e (or any other workspace builder) and thus
+      // m2e does not recreate deleted outputs
+      // this workaround escalates the build if any of the old outputs were deleted
+      // outputs are checked concurrently with input registration, see PendingWorkspace
+      this.outputCheck = ParallelFileCheck.submit(new ArrayList<>(oldState.getOutputs()), MISSING);
+    }
+    this.workspace = outputCheck != null ? new PendingWorkspace() : escalation.workspace;
+    if (escalation != null) {
+      logEscalation(escalation.escalated);
+    }
+
+    if (finalizer != null) {
+      finalizer.registerContext(this);
+    }
+  }
+
+  private static final ParallelFileCheck.Check<File> MISSING = new ParallelFileCheck.Check<File>() {
+    @Override
+    public boolean fails(File file) {
+      // single stat, not exists() and isFile()
+      return FileAttributes.read(file) == null;
+    }
+  };
+
+  /**
+   * Whether this build is escalated and the workspace used by the build.
+   */
+  private static class Escalation {
+    /**
+     * Previous build state does not exist, cannot be read, configuration has changed or outputs of
+     * the previous build were deleted. When escalated, all input files are considered require
+     * processing.
+     */
+    final boolean escalated;
+
+    final Workspace workspace;
+
+    Escalation(boolean escalated, Workspace workspace) {
+      this.escalated = escalated;
       this.workspace = workspace;
     }
+  }
 
+  /**
+   * Returns escalation decision, waits for the presence check of old outputs if necessary.
+   */
+  private Escalation getEscalation() {
+    Escalation result = escalation;
+    if (result == null) {
+      synchronized (outputCheck) {
+        result = escalation;
+        if (result == null) {
+          File missing = outputCheck.join();
+          if (missing != null) {
+            log.debug("Output {} of the previous build does not exist", missing);
+            result = new Escalation(true, baseWorkspace.escalate());
+          } else {
+            result = new Escalation(false, baseWorkspace);
+          }
+          logEscalation(result.escalated);
+          escalation = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  private void logEscalation(boolean escalated) {
     if (escalated && stateFile != null) {
       if (!stateFile.canRead()) {
         log.info("Previous incremental build state does not exist, performing full build");
@@ -105,24 +283,67 @@ public abstract class AbstractBuildContext {
     } else {
       log.info("Performing incremental build");
     }
+  }
 
-    if (finalizer != null) {
-      finalizer.registerContext(this);
+  /**
+   * Workspace of a build context created before the presence check of old outputs completed.
+   * Escalation only changes workspace mode and how walks report changes, so file operations and
+   * resource status checks use the original workspace without waiting for the check. Walks only
+   * wait for the check in {@code DELTA} mode, {@code NORMAL} and escalated walks report all files.
+   */
+  private class PendingWorkspace implements Workspace {
+    @Override
+    public Mode getMode() {
+      return getEscalation().workspace.getMode();
     }
-  }
 
-  private boolean isPresent(Collection<File> outputs) {
-    // in some scenarios, notable classpath change caused by changes to pom.xml,
-    // jdt builder deletes all files from target/classes directory during incremental workspace
-    // build. this behaviour is not communicated to m2e (or any other workspace builder) and thus
-    // m2e does not recreate deleted outputs
-    // this workaround escalates the build if any of the old outputs were deleted
-    for (File output : outputs) {
-      if (!output.exists() || !output.isFile()) {
-        return false;
+    @Override
+    public Workspace escalate() {
+      return getEscalation().workspace.escalate();
+    }
+
+    @Override
+    public boolean isPresent(File file) {
+      return baseWorkspace.isPresent(file);
+    }
+
+    @Override
+    public void deleteFile(File file) throws IOException {
+      baseWorkspace.deleteFile(file);
+    }
+
+    @Override
+    public void processOutput(File file) {
+      baseWorkspace.processOutput(file);
+    }
+
+    @Override
+    public OutputStream newOutputStream(File file) throws IOException {
+      return baseWorkspace.newOutputStream(file);
+    }
+
+    @Override
+    public Workspace.ResourceStatus getResourceStatus(File file, long lastModified, long length) {
+      return baseWorkspace.getResourceStatus(file, lastModified, length);
+    }
+
+    @Override
+    public void walk(File basedir, FileVisitor visitor) throws IOException {
+      Escalation escalation = AbstractBuildContext.this.escalation;
+      if (escalation == null && baseWorkspace.getMode() != Mode.DELTA) {
+        baseWorkspace.walk(basedir, visitor);
+      } else {
+        getEscalation().workspace.walk(basedir, visitor);
       }
     }
-    return true;
+  }
+
+  /**
+   * Returns {@code true} if workspace walks only report changed files. Does not wait for the
+   * presence check of old outputs unless the original workspace is in {@code DELTA} mode.
+   */
+  private boolean isDeltaWalk() {
+    return baseWorkspace.getMode() == Mode.DELTA && workspace.getMode() == Mode.DELTA;
   }
 
   private boolean getConfigurationChanged() {
@@ -165,7 +386,23 @@ public abstract class AbstractBuildContext {
   }
 
   protected boolean isEscalated() {
-    return escalated;
+    return getEscalation().escalated;
+  }
+
+  /**
+   * File visitor that lets the workspace skip directories that cannot contain matching files.
+   */
+  private abstract static class MatchingFileVisitor implements FileVisitor, DirectoryFilter {
+    private final FileMatcher matcher;
+
+    MatchingFileVisitor(FileMatcher matcher) {
+      this.matcher = matcher;
+    }
+
+    @Override
+    public boolean acceptDirectory(File directory) {
+      return matcher.matchesDirectory(directory);
+    }
   }
 
   /**
@@ -173,10 +410,10 @@ public abstract class AbstractBuildContext {
    */
   protected Collection<DefaultResourceMetadata<File>> registerInputs(File basedir,
       Collection<String> includes, Collection<String> excludes) throws IOException {
-    basedir = normalize(basedir);
+    basedir = normalizeCached(basedir);
     final List<DefaultResourceMetadata<File>> result = new ArrayList<>();
     final FileMatcher matcher = FileMatcher.matcher(basedir, includes, excludes);
-    workspace.walk(basedir, new FileVisitor() {
+    workspace.walk(basedir, new MatchingFileVisitor(matcher) {
       @Override
       public void visit(File file, long lastModified, long length,
           Workspace.ResourceStatus status) {
@@ -195,18 +432,31 @@ public abstract class AbstractBuildContext {
         }
       }
     });
-    if (workspace.getMode() == Mode.DELTA) {
+    if (isDeltaWalk()) {
       // only NEW, MODIFIED and REMOVED resources are reported in DELTA mode
       // need to find any UNMODIFIED
       final FileMatcher absoluteMatcher = FileMatcher.absoluteMatcher(basedir, includes, excludes);
-      for (ResourceHolder<?> holder : oldState.getResources().values()) {
+      for (FileState fileState : getUnreportedFiles(absoluteMatcher)) {
+        result.add(
+            registerNormalizedInput(fileState.file, fileState.lastModified, fileState.length));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns previous build state of matching files that were neither registered during this build
+   * nor deleted, i.e. files not reported by a {@code DELTA} walk. Only previous build state of
+   * matching files is decoded.
+   */
+  private List<FileState> getUnreportedFiles(FileMatcher absoluteMatcher) {
+    List<FileState> result = new ArrayList<>();
+    for (Object resource : oldState.getResourceKeys()) {
+      if (resource instanceof File && !state.isResource(resource)
+          && !deletedResources.contains(resource) && absoluteMatcher.matches((File) resource)) {
+        ResourceHolder<?> holder = oldState.getResource(resource);
         if (holder instanceof FileState) {
-          FileState fileState = (FileState) holder;
-          if (!state.isResource(fileState.file) && !deletedResources.contains(fileState.file)
-              && absoluteMatcher.matches(fileState.file)) {
-            result.add(
-                registerNormalizedInput(fileState.file, fileState.lastModified, fileState.length));
-          }
+          result.add((FileState) holder);
         }
       }
     }
@@ -215,10 +465,11 @@ public abstract class AbstractBuildContext {
 
   protected Collection<DefaultResource<File>> registerAndProcessInputs(File basedir,
       Collection<String> includes, Collection<String> excludes) throws IOException {
-    basedir = normalize(basedir);
-    final List<DefaultResource<File>> result = new ArrayList<>();
+    basedir = normalizeCached(basedir);
+    final List<DefaultResourceMetadata<File>> registered = new ArrayList<>();
+    final Set<File> unmodified = new HashSet<>();
     final FileMatcher matcher = FileMatcher.matcher(basedir, includes, excludes);
-    workspace.walk(basedir, new FileVisitor() {
+    workspace.walk(basedir, new MatchingFileVisitor(matcher) {
       @Override
       public void visit(File file, long lastModified, long length,
           Workspace.ResourceStatus status) {
@@ -226,11 +477,10 @@ public abstract class AbstractBuildContext {
           switch (status) {
             case MODIFIED:
             case NEW:
-              DefaultResourceMetadata<File> metadata =
-                  registerNormalizedInput(file, lastModified, length);
-              if (workspace.getMode() == Mode.DELTA
-                  || getResourceStatus(file) != ResourceStatus.UNMODIFIED) {
-                result.add(processResource(metadata));
+              registered.add(registerNormalizedInput(file, lastModified, length));
+              if (!isDeltaWalk()
+                  && getUnescalatedStatus(file) == ResourceStatus.UNMODIFIED) {
+                unmodified.add(file);
               }
               break;
             case REMOVED:
@@ -242,23 +492,112 @@ public abstract class AbstractBuildContext {
         }
       }
     });
-    if (workspace.getMode() == Mode.DELTA) {
+    if (isDeltaWalk()) {
       // only NEW, MODIFIED and REMOVED resources are reported in DELTA mode
       // need to find any UNMODIFIED
       final FileMatcher absoluteMatcher = FileMatcher.absoluteMatcher(basedir, includes, excludes);
-      for (ResourceHolder<?> holder : oldState.getResources().values()) {
-        if (holder instanceof FileState) {
-          FileState fileState = (FileState) holder;
-          if (!state.isResource(fileState.file) && !deletedResources.contains(fileState.file)
-              && absoluteMatcher.matches(fileState.file)) {
-            registerNormalizedInput(fileState.file, fileState.lastModified, fileState.length);
-          }
-        }
+      for (FileState fileState : getUnreportedFiles(absoluteMatcher)) {
+        registerNormalizedInput(fileState.file, fileState.lastModified, fileState.length);
+      }
+    }
+    // unmodified inputs are only processed by escalated builds. the presence check of old outputs
+    // is only waited for after the walk, so it runs concurrently with input registration
+    boolean escalated = !unmodified.isEmpty() && isEscalated();
+    List<DefaultResource<File>> result = new ArrayList<>();
+    for (DefaultResourceMetadata<File> metadata : registered) {
+      if (escalated || !unmodified.contains(metadata.getResource())) {
+        result.add(processResource(metadata));
       }
     }
     return result;
   }
 
+  /**
+   * Registers inputs and processes new and modified inputs concurrently using the provided
+   * executor. Failure of the first failed input, in registration order, is rethrown after all
+   * inputs were processed.
+   * <p>
+   * The calling thread runs inputs not yet picked up by the executor itself, so nested calls and
+   * saturated executors cannot starve processing.
+   */
+  protected Collection<DefaultResource<File>> registerAndProcessInputs(File basedir,
+      Collection<String> includes, Collection<String> excludes, Executor executor,
+      final InputProcessor processor) throws IOException {
+    Collection<DefaultResource<File>> inputs =
+        registerAndProcessInputs(basedir, includes, excludes);
+    if (executor == null) {
+      executor = ExecutorHolder.EXECUTOR;
+    }
+    List<FutureTask<Void>> tasks = new ArrayList<>(inputs.size());
+    for (final DefaultResource<File> input : inputs) {
+      FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          processor.process(input);
+          return null;
+        }
+      });
+      tasks.add(task);
+      executor.execute(task);
+    }
+    Throwable failure = null;
+    for (FutureTask<Void> task : tasks) {
+      // no-op if the task was already started by the executor
+      task.run();
+      try {
+        task.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause();
+        }
+      } catch (InterruptedException e) {
+        for (FutureTask<Void> other : tasks) {
+          other.cancel(true);
+        }
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while processing inputs");
+      }
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    }
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    }
+    if (failure instanceof Error) {
+      throw (Error) failure;
+    }
+    return inputs;
+  }
+
+  private static class ExecutorHolder {
+    /**
+     * Bounded executor used to process inputs when no executor is provided. Worker threads are
+     * daemon threads and are not kept alive when idle.
+     */
+    static final ExecutorService EXECUTOR;
+
+    static {
+      int threads = Runtime.getRuntime().availableProcessors();
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "input-processor-" + count.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+      EXECUTOR = executor;
+    }
+  }
+
+  /**
+   * Returns canonical form of the file.
+   */
   protected static File normalize(File file) {
     if (file == null) {
       throw new IllegalArgumentException();
@@ -270,38 +609,137 @@ public abstract class AbstractBuildContext {
     }
   }
 
+  /**
+   * Returns canonical form of the file, like {@link #normalize(File)}, but caches canonical parent
+   * directories for the lifetime of this build context, so files in already seen directories only
+   * have their leaf name appended without touching the filesystem. Leaf symbolic links are only
+   * resolved for the file that first brings its directory into the cache. On Windows, where
+   * canonicalization also normalizes the case of the file name, files are canonicalized in full.
+   */
+  protected File normalizeCached(File file) {
+    if (file == null) {
+      throw new IllegalArgumentException();
+    }
+    File absolute = file.getAbsoluteFile();
+    File parent = absolute.getParentFile();
+    String name = absolute.getName();
+    if (WINDOWS || parent == null || name.isEmpty() || ".".equals(name) || "..".equals(name)) {
+      return normalize(absolute);
+    }
+    File canonicalParent = canonicalDirectories.get(parent);
+    if (canonicalParent == null) {
+      try {
+        if (Files.isSymbolicLink(absolute.toPath())) {
+          return normalize(absolute);
+        }
+      } catch (InvalidPathException e) {
+        // not a valid nio path, but may still be canonicalized by java.io
+        return normalize(absolute);
+      }
+      canonicalParent = normalize(parent);
+      canonicalDirectories.put(parent, canonicalParent);
+    }
+    return new File(canonicalParent, name);
+  }
+
+
   protected DefaultResourceMetadata<File> registerNormalizedInput(File resourceFile,
       long lastModified, long length) {
     assertOpen();
     if (!state.isResource(resourceFile)) {
-      registerInput(newFileState(resourceFile, lastModified, length));
+      // the file was reported by the workspace, no need to check if it exists
+      registerInput(newInputFileState(resourceFile, lastModified, length));
     }
     return new DefaultResourceMetadata<File>(this, oldState, resourceFile);
   }
 
   protected DefaultResourceMetadata<File> registerNormalizedOutput(File outputFile) {
     assertOpen();
-    if (!state.isResource(outputFile)) {
-      state.putResource(outputFile, null); // placeholder
-      state.addOutput(outputFile);
-    } else {
-      if (!state.isOutput(outputFile)) {
-        throw new IllegalStateException("Already registered as input " + outputFile);
+    synchronized (state) {
+      if (!state.isResource(outputFile)) {
+        state.putResource(outputFile, null); // placeholder
+        state.addOutput(outputFile);
+      } else {
+        if (!state.isOutput(outputFile)) {
+          throw new IllegalStateException("Already registered as input " + outputFile);
+        }
       }
     }
     return new DefaultResourceMetadata<File>(this, oldState, outputFile);
   }
 
-  private FileState newFileState(File file, long lastModified, long length) {
-    if (!workspace.isPresent(file)) {
+  private FileAttributes readAttributes(File file) {
+    FileAttributes attrs = workspace.isPresent(file) ? FileAttributes.read(file) : null;
+    if (attrs == null) {
       throw new IllegalArgumentException("File does not exist or cannot be read " + file);
     }
-    return new FileState(file, lastModified, length);
+    return attrs;
+  }
+
+  private FileState newFileState(File file) {
+    FileAttributes attrs = readAttributes(file);
+    return new FileState(file, attrs.lastModified, attrs.length);
+  }
+
+  /**
+   * Returns state of the input file, with contents digest if enabled. The digest of the previous
+   * build is reused if the file timestamp and length did not change.
+   */
+  private FileState newInputFileState(File file, long lastModified, long length) {
+    if (!contentHash) {
+      return new FileState(file, lastModified, length);
+    }
+    ResourceHolder<?> oldHolder = oldState.getResource(file);
+    if (oldHolder instanceof FileState) {
+      FileState oldFileState = (FileState) oldHolder;
+      if (oldFileState.hash != null && !oldFileState.racy
+          && FileAttributes.isSameTimestamp(oldFileState.lastModified, lastModified)
+          && oldFileState.length == length) {
+        return new FileState(file, lastModified, length, oldFileState.hash);
+      }
+    }
+    byte[] hash;
+    try {
+      hash = FileState.digest(file);
+    } catch (IOException e) {
+      // the file was removed concurrently, reported as such by the status check
+      hash = null;
+    }
+    return new FileState(file, lastModified, length, hash);
+  }
+
+  /**
+   * Returns {@code true} if contents digest is enabled and the file has the same length and
+   * contents as described by the old file state.
+   */
+  private boolean isContentUnmodified(FileState oldFileState) {
+    if (!contentHash || oldFileState.hash == null) {
+      return false;
+    }
+    File file = oldFileState.file;
+    ResourceHolder<?> holder = state.getResource(file);
+    FileState fileState;
+    if (holder instanceof FileState && ((FileState) holder).hash != null) {
+      fileState = (FileState) holder;
+    } else {
+      FileAttributes attrs = FileAttributes.read(file);
+      if (attrs == null || attrs.length != oldFileState.length) {
+        return false;
+      }
+      fileState = newInputFileState(file, attrs.lastModified, attrs.length);
+    }
+    return fileState.length == oldFileState.length
+        && Arrays.equals(fileState.hash, oldFileState.hash);
   }
 
   protected DefaultResourceMetadata<File> registerInput(File inputFile) {
-    inputFile = normalize(inputFile);
-    return registerNormalizedInput(inputFile, inputFile.lastModified(), inputFile.length());
+    inputFile = normalizeCached(inputFile);
+    assertOpen();
+    if (!state.isResource(inputFile)) {
+      FileAttributes attrs = readAttributes(inputFile);
+      registerInput(newInputFileState(inputFile, attrs.lastModified, attrs.length));
+    }
+    return new DefaultResourceMetadata<File>(this, oldState, inputFile);
   }
 
   /**
@@ -310,20 +748,23 @@ public abstract class AbstractBuildContext {
    */
   protected <T extends Serializable> T registerInput(ResourceHolder<T> holder) {
     T resource = holder.getResource();
-    ResourceHolder<?> other = state.getResource(resource);
-    if (other == null) {
-      if (getResourceStatus(holder) == ResourceStatus.REMOVED) {
-        throw new IllegalArgumentException("Resource does not exist " + resource);
-      }
-      state.putResource(resource, holder);
-    } else {
-      if (state.isOutput(resource)) {
-        throw new IllegalStateException("Already registered as output " + resource);
-      }
-      if (!holder.equals(other)) {
-        throw new IllegalArgumentException("Inconsistent resource state " + resource);
+    // stat and possibly hash the resource outside of the state lock, only publish under the lock
+    if (!state.isResource(resource) && getResourceStatus(holder) == ResourceStatus.REMOVED) {
+      throw new IllegalArgumentException("Resource does not exist " + resource);
+    }
+    synchronized (state) {
+      ResourceHolder<?> other = state.getResource(resource);
+      if (other == null) {
+        state.putResource(resource, holder);
+      } else {
+        if (state.isOutput(resource)) {
+          throw new IllegalStateException("Already registered as output " + resource);
+        }
+        if (!holder.equals(other)) {
+          throw new IllegalArgumentException("Inconsistent resource state " + resource);
+        }
+        state.putResource(resource, holder);
       }
-      state.putResource(resource, holder);
     }
     return resource;
   }
@@ -332,6 +773,20 @@ public abstract class AbstractBuildContext {
    * Returns resource status compared to the previous build.
    */
   protected ResourceStatus getResourceStatus(Object resource) {
+    ResourceStatus status = getUnescalatedStatus(resource);
+
+    if (status == ResourceStatus.UNMODIFIED && isEscalated()) {
+      status = ResourceStatus.MODIFIED;
+    }
+
+    return status;
+  }
+
+  /**
+   * Returns resource status compared to the previous build, without considering escalation, so
+   * does not wait for the presence check of old outputs.
+   */
+  private ResourceStatus getUnescalatedStatus(Object resource) {
     if (deletedResources.contains(resource)) {
       return ResourceStatus.REMOVED;
     }
@@ -341,13 +796,7 @@ public abstract class AbstractBuildContext {
       return ResourceStatus.NEW;
     }
 
-    ResourceStatus status = getResourceStatus(oldResourceState);
-
-    if (status == ResourceStatus.UNMODIFIED && escalated) {
-      status = ResourceStatus.MODIFIED;
-    }
-
-    return status;
+    return getResourceStatus(oldResourceState);
   }
 
   private ResourceStatus getResourceStatus(ResourceHolder<?> holder) {
@@ -358,10 +807,14 @@ public abstract class AbstractBuildContext {
         case NEW:
           return ResourceStatus.NEW;
         case MODIFIED:
-          return ResourceStatus.MODIFIED;
+          return isContentUnmodified(fileState) ? ResourceStatus.UNMODIFIED
+              : ResourceStatus.MODIFIED;
         case REMOVED:
           return ResourceStatus.REMOVED;
         case UNMODIFIED:
+          if (fileState.racy && !isContentUnmodified(fileState)) {
+            return ResourceStatus.MODIFIED;
+          }
           return ResourceStatus.UNMODIFIED;
       }
       throw new IllegalArgumentException();
@@ -389,9 +842,11 @@ public abstract class AbstractBuildContext {
     processedResources.add(resource);
 
     // reset all metadata associated with the resource during this build
-    state.removeResourceAttributes(resource);
-    state.removeResourceMessages(resource);
-    state.removeResourceOutputs(resource);
+    synchronized (state) {
+      state.removeResourceAttributes(resource);
+      state.removeResourceMessages(resource);
+      state.removeResourceOutputs(resource);
+    }
   }
 
   protected void markProcessedResource(Object resource) {
@@ -430,7 +885,7 @@ public abstract class AbstractBuildContext {
   }
 
   protected DefaultOutput processOutput(File outputFile) {
-    outputFile = normalize(outputFile);
+    outputFile = normalizeCached(outputFile);
 
     registerNormalizedOutput(outputFile);
     processResource(outputFile);
@@ -452,9 +907,11 @@ public abstract class AbstractBuildContext {
       throw new IllegalArgumentException();
     }
 
-    assertAssociation(resource, output);
+    synchronized (state) {
+      assertAssociation(resource, output);
 
-    state.putResourceOutput(resource.getResource(), output.getResource());
+      state.putResourceOutput(resource.getResource(), output.getResource());
+    }
     return output;
   }
 
@@ -483,32 +940,31 @@ public abstract class AbstractBuildContext {
     }
     this.closed = true;
 
+    // escalation is decided lazily, make sure the build kind is logged
+    getEscalation();
+
     // messages recorded during this build
     Map<Object, Collection<Message>> newMessages = new HashMap<>(state.getResourceMessages());
 
     finalizeContext();
 
-    // assert inputs didn't change
-    for (Map.Entry<Object, ResourceHolder<?>> entry : state.getResources().entrySet()) {
-      Object resource = entry.getKey();
-      ResourceHolder<?> holder = entry.getValue();
-      if (!state.isOutput(resource) && holder.getStatus() != ResourceStatus.UNMODIFIED) {
-        throw new IllegalStateException("Unexpected input change " + resource);
-      }
-    }
+    assertInputsUnmodified();
 
     // timestamp new outputs
     for (File outputFile : state.getOutputs()) {
       if (state.getResource(outputFile) == null) {
-        state.putResource(outputFile,
-            newFileState(outputFile, outputFile.lastModified(), outputFile.length()));
+        state.putResource(outputFile, newFileState(outputFile));
       }
     }
 
+    if (racyTimestamps) {
+      markRacyInputs();
+    }
+
     if (stateFile != null) {
       final long start = System.currentTimeMillis();
-      try (OutputStream os = workspace.newOutputStream(stateFile)) {
-        state.storeTo(os);
+      if (!appendStateJournal()) {
+        storeState();
       }
       log.debug("Stored incremental build state {} ({} ms)", stateFile,
           System.currentTimeMillis() - start);
@@ -548,6 +1004,109 @@ public abstract class AbstractBuildContext {
 
   }
 
+  private void assertInputsUnmodified() {
+    if (inputCheck <= 0) {
+      return;
+    }
+    Random random = inputCheck < 100 ? new Random() : null;
+    List<FileState> files = new ArrayList<>();
+    for (Map.Entry<Object, ResourceHolder<?>> entry : state.getResources().entrySet()) {
+      Object resource = entry.getKey();
+      ResourceHolder<?> holder = entry.getValue();
+      if (state.isOutput(resource) || random != null && random.nextInt(100) >= inputCheck) {
+        continue;
+      }
+      if (holder instanceof FileState) {
+        // files are stat'ed in bulk below
+        files.add((FileState) holder);
+      } else if (holder.getStatus() != ResourceStatus.UNMODIFIED) {
+        throw new IllegalStateException("Unexpected input change " + resource);
+      }
+    }
+    FileState changed = FileStateCheck.findChanged(files);
+    if (changed != null) {
+      throw new IllegalStateException("Unexpected input change " + changed.file);
+    }
+  }
+
+  /**
+   * Marks inputs modified too recently to be trusted based on their timestamp, so they are
+   * rechecked by the next build instead of escalating the next build.
+   */
+  private void markRacyInputs() {
+    final long now = System.currentTimeMillis();
+    List<FileState> racy = new ArrayList<>();
+    for (Map.Entry<Object, ResourceHolder<?>> entry : state.getResources().entrySet()) {
+      ResourceHolder<?> holder = entry.getValue();
+      if (holder instanceof FileState && !state.isOutput(entry.getKey())) {
+        FileState fileState = (FileState) holder;
+        if (!fileState.racy && now - fileState.lastModified < FileAttributes.RACY_INTERVAL) {
+          racy.add(fileState);
+        }
+      }
+    }
+    for (FileState fileState : racy) {
+      state.putResource(fileState.file, fileState.asRacy());
+    }
+  }
+
+  /**
+   * Writes complete state to the state file. State files written directly to the filesystem are
+   * replaced atomically, other workspaces get to see the state file change.
+   */
+  private void storeState() throws IOException {
+    if (isFilesystem(stateFile)) {
+      state.storeTo(stateFile);
+    } else {
+      try (OutputStream os = workspace.newOutputStream(stateFile)) {
+        state.storeTo(os);
+      }
+    }
+  }
+
+  private boolean isFilesystem(File file) {
+    return baseWorkspace instanceof FilesystemAccess
+        && ((FilesystemAccess) baseWorkspace).isFilesystem(file);
+  }
+
+  /**
+   * Appends changes of this build to the state file journal. Returns {@code false} if the journal
+   * is disabled, old state cannot be used as the base of the journal or the journal has grown past
+   * maximum size and the complete state must be written to compact the journal.
+   */
+  private boolean appendStateJournal() throws IOException {
+    long journalSize = oldState.getJournalSize();
+    if (stateJournalSize < 0 || journalSize < 0 || configurationChanged) {
+      return false;
+    }
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    if (!state.storeJournalTo(buf, oldState)) {
+      return true; // nothing changed
+    }
+    if (journalSize + buf.size() > stateJournalSize) {
+      return false;
+    }
+    if (isFilesystem(stateFile)) {
+      try (FileChannel channel = FileChannel.open(stateFile.toPath(), StandardOpenOption.WRITE,
+          StandardOpenOption.APPEND)) {
+        ByteBuffer segment = ByteBuffer.wrap(buf.toByteArray());
+        while (segment.hasRemaining()) {
+          channel.write(segment);
+        }
+        channel.force(true);
+      }
+    } else {
+      // workspace API does not support appending to existing files, the state file is written
+      // back followed by the new segment, so the workspace gets to see the state file change
+      byte[] bytes = Files.readAllBytes(stateFile.toPath());
+      try (OutputStream os = workspace.newOutputStream(stateFile)) {
+        os.write(bytes);
+        buf.writeTo(os);
+      }
+    }
+    return true;
+  }
+
   protected abstract void finalizeContext() throws IOException;
 
   protected void log(Object resource, int line, int column, String message,
@@ -576,12 +1135,14 @@ public abstract class AbstractBuildContext {
     deletedResources.add(resource);
     processedResources.add(resource);
 
-    state.removeResource(resource);
-    state.removeOutput(resource);
+    synchronized (state) {
+      state.removeResource(resource);
+      state.removeOutput(resource);
 
-    state.removeResourceAttributes(resource);
-    state.removeResourceMessages(resource);
-    state.removeResourceOutputs(resource);
+      state.removeResourceAttributes(resource);
+      state.removeResourceMessages(resource);
+      state.removeResourceOutputs(resource);
+    }
   }
 
   protected void assertOpen() {
@@ -600,6 +1161,9 @@ public abstract class AbstractBuildContext {
       throw new IllegalStateException();
     }
 
+    // do not leave the presence check of old outputs running, make sure the build kind is logged
+    getEscalation();
+
     closed = true;
   }
 
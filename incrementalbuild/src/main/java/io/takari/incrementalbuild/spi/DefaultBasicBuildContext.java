@@ -32,7 +32,9 @@ public class DefaultBasicBuildContext extends AbstractBuildContext implements Ba
     } else {
       // carry-over all metadata
       for (Object resource : oldState.getResources().keySet()) {
-        state.putResource(resource, oldState.getResource(resource));
+        if (!state.isResource(resource)) {
+          state.putResource(resource, oldState.getResource(resource));
+        }
         state.setResourceMessages(resource, oldState.getResourceMessages(resource));
         state.setResourceAttributes(resource, oldState.getResourceAttributes(resource));
         if (oldState.isOutput(resource)) {
@@ -1,6 +1,7 @@
 package io.takari.incrementalbuild.spi;
 
 import io.takari.incrementalbuild.BuildContext;
+import io.takari.incrementalbuild.InputProcessor;
 import io.takari.incrementalbuild.workspace.Workspace;
 
 import java.io.File;
@@ -10,6 +11,7 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 public class DefaultBuildContext extends AbstractBuildContext implements BuildContext {
 
@@ -28,6 +30,13 @@ public class DefaultBuildContext extends AbstractBuildContext implements BuildCo
     return super.registerAndProcessInputs(basedir, includes, excludes);
   }
 
+  @Override
+  public Collection<DefaultResource<File>> registerAndProcessInputs(File basedir,
+      Collection<String> includes, Collection<String> excludes, Executor executor,
+      InputProcessor processor) throws IOException {
+    return super.registerAndProcessInputs(basedir, includes, excludes, executor, processor);
+  }
+
   @Override
   protected void finalizeContext() throws IOException {
 
@@ -68,9 +77,9 @@ public class DefaultBuildContext extends AbstractBuildContext implements BuildCo
         throw new IllegalStateException("Inconsistent resource type change " + resource);
       }
 
-      // carry over
+      // carry over. registered resource state is kept, it may differ from the old state if only
+      // file timestamp changed, see AbstractBuildContext#PROP_CONTENT_HASH
 
-      state.putResource(resource, oldState.getResource(resource));
       state.setResourceMessages(resource, oldState.getResourceMessages(resource));
       state.setResourceAttributes(resource, oldState.getResourceAttributes(resource));
 
@@ -1,30 +1,40 @@
 package io.takari.incrementalbuild.spi;
 
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.ObjectStreamClass;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.takari.incrementalbuild.ResourceStatus;
+
+/**
+ * Incremental build state. Resources and outputs are kept in concurrent maps and are accessed
+ * without locking. Collections and maps of resource outputs, attributes and messages are modified
+ * in place while holding the state monitor, accessors return snapshots of them. Callers that
+ * perform compound state updates synchronize on the state too.
+ */
 public class DefaultBuildContextState implements Serializable {
 
   private static final transient Logger log = LoggerFactory
@@ -36,6 +46,24 @@ public class DefaultBuildContextState implements Serializable {
 
   private final Set<File> outputs;
 
+  /**
+   * Stands for {@code null} resource state, e.g. of outputs that were registered but not written
+   * yet. Concurrent maps do not allow {@code null} values.
+   */
+  private static final ResourceHolder<?> NO_HOLDER = new ResourceHolder<Serializable>() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Serializable getResource() {
+      return null;
+    }
+
+    @Override
+    public ResourceStatus getStatus() {
+      return null;
+    }
+  };
+
   private final Map<Object, ResourceHolder<?>> resources;
 
   private final Map<Object, Collection<File>> resourceOutputs;
@@ -47,7 +75,7 @@ public class DefaultBuildContextState implements Serializable {
 
   private final Map<Object, Collection<Message>> resourceMessages;
 
-  private DefaultBuildContextState(Map<String, Serializable> configuration //
+  DefaultBuildContextState(Map<String, Serializable> configuration //
       , Map<Object, ResourceHolder<?>> inputs //
       , Set<File> outputs //
       , Map<Object, Collection<File>> resourceOutputs //
@@ -68,12 +96,12 @@ public class DefaultBuildContextState implements Serializable {
     // configuration marker used to distinguish between empty and new state
     copy.put("incremental", Boolean.TRUE);
     return new DefaultBuildContextState(Collections.<String, Serializable>unmodifiableMap(copy) // configuration
-        , new HashMap<Object, ResourceHolder<?>>() // inputs
-        , new HashSet<File>() // outputs
-        , new HashMap<Object, Collection<File>>() // inputOutputs
-        , new HashMap<File, Collection<Object>>() // outputInputs
-        , new HashMap<Object, Map<String, Serializable>>() // resourceAttributes
-        , new HashMap<Object, Collection<Message>>() // messages
+        , new ConcurrentHashMap<Object, ResourceHolder<?>>() // inputs
+        , Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>()) // outputs
+        , new ConcurrentHashMap<Object, Collection<File>>() // inputOutputs
+        , new ConcurrentHashMap<File, Collection<Object>>() // outputInputs
+        , new ConcurrentHashMap<Object, Map<String, Serializable>>() // resourceAttributes
+        , new ConcurrentHashMap<Object, Collection<Message>>() // messages
     );
   }
 
@@ -88,7 +116,7 @@ public class DefaultBuildContextState implements Serializable {
     );
   }
 
-  public String getStats() {
+  public synchronized String getStats() {
     StringBuilder sb = new StringBuilder();
 
     sb.append(configuration.size()).append(' ');
@@ -102,63 +130,216 @@ public class DefaultBuildContextState implements Serializable {
     return sb.toString();
   }
 
-  public void storeTo(OutputStream os) throws IOException {
-    ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(os));
+  /**
+   * Atomically replaces the state file. The state is written to a temporary file, which is synced
+   * to disk and renamed over the state file, so the state file holds either the previous or the
+   * new complete state even if the build is interrupted.
+   */
+  public void storeTo(File stateFile) throws IOException {
+    File parent = stateFile.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Could not create directory " + parent);
+    }
+    // unique temporary file, the state file can be written by concurrent builds
+    Path tmpFile = Files.createTempFile(parent.toPath(), stateFile.getName(), ".tmp");
     try {
-      writeMap(oos, this.configuration);
-      writeCollection(oos, this.outputs);
-      writeMap(oos, this.resources);
-
-      writeMultimap(oos, resourceOutputs);
-      writeDoublemap(oos, resourceAttributes);
-      writeMultimap(oos, resourceMessages);
-
+      try (FileOutputStream os = new FileOutputStream(tmpFile.toFile())) {
+        storeTo(os);
+        os.getFD().sync();
+      }
+      Files.move(tmpFile, stateFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
     } finally {
-      oos.flush();
+      Files.deleteIfExists(tmpFile);
     }
   }
 
-  private static void writeMap(ObjectOutputStream oos, Map<?, ?> map) throws IOException {
-    oos.writeInt(map.size());
-    for (Map.Entry<?, ?> entry : map.entrySet()) {
-      oos.writeObject(entry.getKey());
-      oos.writeObject(entry.getValue());
-    }
+  public synchronized void storeTo(OutputStream os) throws IOException {
+    StateWriter writer = new StateWriter();
+
+    writer.writeMap(configuration);
+    writer.writeCollection(sorted(outputs));
+    writeRecords(writer, sorted(getRecordKeys()));
+
+    writer.writeTo(os);
   }
 
-  private static void writeMultimap(ObjectOutputStream oos, Map<?, ? extends Collection<?>> mmap)
+  /**
+   * Writes state journal segment with changes of this state compared to the old state, which must
+   * have the same configuration. Returns {@code false} and writes nothing if the two states are
+   * the same.
+   */
+  synchronized boolean storeJournalTo(OutputStream os, DefaultBuildContextState oldState)
       throws IOException {
-    oos.writeInt(mmap.size());
-    for (Map.Entry<?, ? extends Collection<?>> entry : mmap.entrySet()) {
-      oos.writeObject(entry.getKey());
-      writeCollection(oos, entry.getValue());
+    Set<File> addedOutputs = new LinkedHashSet<>(outputs);
+    addedOutputs.removeAll(oldState.getOutputs());
+    Set<File> removedOutputs = new LinkedHashSet<>(oldState.getOutputs());
+    removedOutputs.removeAll(outputs);
+
+    Set<Object> keys = new LinkedHashSet<>();
+    for (Object key : getRecordKeys()) {
+      if (isRecordChanged(key, oldState)) {
+        keys.add(key);
+      }
+    }
+    for (Object key : oldState.getRecordKeys()) {
+      if (!keys.contains(key) && isRecordChanged(key, oldState)) {
+        keys.add(key);
+      }
+    }
+
+    if (addedOutputs.isEmpty() && removedOutputs.isEmpty() && keys.isEmpty()) {
+      return false;
     }
+
+    StateWriter writer = new StateWriter(StateFormat.SEGMENT_JOURNAL);
+    writer.writeCollection(sorted(addedOutputs));
+    writer.writeCollection(sorted(removedOutputs));
+    // records of removed resources are written with no flags
+    writeRecords(writer, sorted(keys));
+    writer.writeTo(os);
+
+    return true;
   }
 
-  private static void writeCollection(ObjectOutputStream oos, Collection<?> collection)
-      throws IOException {
-    if (collection == null || collection.isEmpty()) {
-      oos.writeInt(0);
-    } else {
-      oos.writeInt(collection.size());
-      for (Object element : collection) {
-        oos.writeObject(element);
+  private boolean isRecordChanged(Object key, DefaultBuildContextState oldState) {
+    return isResource(key) != oldState.isResource(key) //
+        || !Objects.equals(getResource(key), oldState.getResource(key)) //
+        || !equalsCollections(getResourceOutputs(key), oldState.getResourceOutputs(key)) //
+        || !equalsMaps(getResourceAttributes(key), oldState.getResourceAttributes(key)) //
+        || !equalsCollections(getResourceMessages(key), oldState.getResourceMessages(key));
+  }
+
+  private static boolean equalsCollections(Collection<?> a, Collection<?> b) {
+    if (isEmpty(a) || isEmpty(b)) {
+      return isEmpty(a) && isEmpty(b);
+    }
+    // element order is preserved in the state file, so it matters here too
+    return new ArrayList<Object>(a).equals(new ArrayList<Object>(b));
+  }
+
+  private static boolean equalsMaps(Map<?, ?> a, Map<?, ?> b) {
+    if (a == null || a.isEmpty() || b == null || b.isEmpty()) {
+      return (a == null || a.isEmpty()) && (b == null || b.isEmpty());
+    }
+    return a.equals(b);
+  }
+
+  /**
+   * Returns the given keys with files ordered by path, followed by all other keys in iteration
+   * order. Iteration order of the concurrent state collections depends on the order entries were
+   * inserted in, which is not deterministic when inputs are processed concurrently, the state file
+   * must not depend on it.
+   */
+  private static <T> List<T> sorted(Collection<T> keys) {
+    List<T> files = new ArrayList<>(keys.size());
+    List<T> others = new ArrayList<>();
+    for (T key : keys) {
+      (key instanceof File ? files : others).add(key);
+    }
+    Collections.sort(files, new Comparator<T>() {
+      @Override
+      public int compare(T a, T b) {
+        return ((File) a).compareTo((File) b);
+      }
+    });
+    files.addAll(others);
+    return files;
+  }
+
+  /**
+   * Returns keys of all resources that have resource state, outputs, attributes or messages.
+   */
+  synchronized Set<Object> getRecordKeys() {
+    Set<Object> keys = new LinkedHashSet<>(resources.keySet());
+    keys.addAll(resourceOutputs.keySet());
+    keys.addAll(resourceAttributes.keySet());
+    keys.addAll(resourceMessages.keySet());
+    return keys;
+  }
+
+  /**
+   * Returns size of state journal appended to the state file this state was loaded from, or
+   * {@code -1} if this state was not loaded from a state file or new journal segments cannot be
+   * appended to the state file.
+   */
+  long getJournalSize() {
+    return -1;
+  }
+
+  private void writeRecords(StateWriter writer, Collection<Object> keys) throws IOException {
+    // one record per resource, see MappedBuildContextState
+    int[] flags = new int[keys.size()];
+    int[] offsets = new int[keys.size()];
+    int idx = 0;
+    for (Object key : keys) {
+      offsets[idx] = writer.position();
+      flags[idx] = getRecordFlags(key);
+      int serializableCount = writer.getSerializableCount();
+      writeRecord(writer, key, flags[idx]);
+      if (writer.getSerializableCount() != serializableCount) {
+        flags[idx] |= StateFormat.RECORD_SERIALIZABLE;
+      }
+      idx++;
+    }
+
+    writer.startIndex();
+    writer.writeVarint(keys.size());
+    idx = 0;
+    for (Object key : keys) {
+      writer.writeObject(key);
+      writer.writeByte(flags[idx]);
+      writer.writeVarint(offsets[idx]);
+      if ((flags[idx] & StateFormat.RECORD_OUTPUTS) != 0) {
+        // outputs are duplicated in the index, so inputs of an output are found without decoding
+        // all records
+        writer.writeCollection(resourceOutputs.get(key));
       }
+      idx++;
     }
   }
 
-  private static void writeDoublemap(ObjectOutputStream oos, Map<?, ? extends Map<?, ?>> dmap)
-      throws IOException {
-    oos.writeInt(dmap.size());
-    for (Map.Entry<?, ? extends Map<?, ?>> entry : dmap.entrySet()) {
-      oos.writeObject(entry.getKey());
-      writeMap(oos, entry.getValue());
+  private int getRecordFlags(Object key) {
+    int flags = 0;
+    if (resources.containsKey(key)) {
+      flags |= StateFormat.RECORD_RESOURCE;
+    }
+    if (!isEmpty(resourceOutputs.get(key))) {
+      flags |= StateFormat.RECORD_OUTPUTS;
+    }
+    Map<String, Serializable> attributes = resourceAttributes.get(key);
+    if (attributes != null && !attributes.isEmpty()) {
+      flags |= StateFormat.RECORD_ATTRIBUTES;
+    }
+    if (!isEmpty(resourceMessages.get(key))) {
+      flags |= StateFormat.RECORD_MESSAGES;
+    }
+    return flags;
+  }
+
+  private static boolean isEmpty(Collection<?> collection) {
+    return collection == null || collection.isEmpty();
+  }
+
+  private void writeRecord(StateWriter writer, Object key, int flags) throws IOException {
+    // flags are duplicated in the index, so resource keys are known without decoding records
+    writer.writeByte(flags);
+    if ((flags & StateFormat.RECORD_RESOURCE) != 0) {
+      writer.writeObject(getResource(key));
+    }
+    if ((flags & StateFormat.RECORD_OUTPUTS) != 0) {
+      writer.writeCollection(resourceOutputs.get(key));
+    }
+    if ((flags & StateFormat.RECORD_ATTRIBUTES) != 0) {
+      writer.writeMap(resourceAttributes.get(key));
+    }
+    if ((flags & StateFormat.RECORD_MESSAGES) != 0) {
+      writer.writeCollection(resourceMessages.get(key));
     }
   }
 
   public static DefaultBuildContextState loadFrom(File stateFile) {
     // TODO verify stateFile location has not changed since last build
-    // TODO wrap collections in corresponding immutable collections
 
     if (stateFile == null) {
       // transient build context
@@ -166,51 +347,11 @@ public class DefaultBuildContextState implements Serializable {
     }
 
     try {
-      ObjectInputStream is =
-          new ObjectInputStream(new BufferedInputStream(new FileInputStream(stateFile))) {
-            @Override
-            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
-                ClassNotFoundException {
-              // TODO does it matter if TCCL or super is called first?
-              try {
-                ClassLoader tccl = Thread.currentThread().getContextClassLoader();
-                Class<?> clazz = tccl.loadClass(desc.getName());
-                return clazz;
-              } catch (ClassNotFoundException e) {
-                return super.resolveClass(desc);
-              }
-            }
-          };
-      try {
-        final long start = System.currentTimeMillis();
-
-        Map<String, Serializable> configuration = readMap(is);
-        Set<File> outputs = readSet(is);
-        Map<Object, ResourceHolder<?>> resources = readMap(is);
-
-        Map<Object, Collection<File>> resourceOutputs = readMultimap(is);
-        Map<File, Collection<Object>> outputInputs = invertMultimap(resourceOutputs);
-        Map<Object, Map<String, Serializable>> resourceAttributes = readDoublemap(is);
-        Map<Object, Collection<Message>> messages = readMultimap(is);
-
-        DefaultBuildContextState state = new DefaultBuildContextState(configuration //
-            , resources //
-            , outputs //
-            , resourceOutputs //
-            , outputInputs //
-            , resourceAttributes //
-            , messages //
-            );
-        log.debug("Loaded incremental build state {} ({} ms)", stateFile,
-            System.currentTimeMillis() - start);
-        return state;
-      } finally {
-        try {
-          is.close();
-        } catch (IOException e) {
-          // ignore secondary exceptions
-        }
-      }
+      final long start = System.currentTimeMillis();
+      DefaultBuildContextState state = MappedBuildContextState.load(stateFile);
+      log.debug("Loaded incremental build state {} ({} ms)", stateFile,
+          System.currentTimeMillis() - start);
+      return state;
     } catch (FileNotFoundException e) {
       // this is expected, silently ignore
     } catch (RuntimeException e) {
@@ -224,81 +365,27 @@ public class DefaultBuildContextState implements Serializable {
   }
 
   @SuppressWarnings("unchecked")
-  private static <K, V> Map<K, V> readMap(ObjectInputStream ois) throws IOException,
-      ClassNotFoundException {
-    Map<K, V> map = new HashMap<K, V>();
-    int size = ois.readInt();
-    for (int i = 0; i < size; i++) {
-      K key = (K) ois.readObject();
-      V value = (V) ois.readObject();
-      map.put(key, value);
-    }
+  static <K, V> Map<K, V> readMap(StateReader reader) throws IOException {
+    Map<K, V> map = (Map<K, V>) reader.readMap(new HashMap<Object, Object>());
     return Collections.unmodifiableMap(map);
   }
 
   @SuppressWarnings("unchecked")
-  private static <K, V> Map<K, Collection<V>> readMultimap(ObjectInputStream ois)
-      throws IOException, ClassNotFoundException {
-    Map<K, Collection<V>> mmap = new HashMap<K, Collection<V>>();
-    int size = ois.readInt();
-    for (int i = 0; i < size; i++) {
-      K key = (K) ois.readObject();
-      Collection<V> value = readCollection(ois);
-      mmap.put(key, value);
-    }
-    return Collections.unmodifiableMap(mmap);
-  }
-
-  @SuppressWarnings("unchecked")
-  private static <V> Collection<V> readCollection(ObjectInputStream ois) throws IOException,
-      ClassNotFoundException {
-    int size = ois.readInt();
-    if (size == 0) {
+  static <V> Collection<V> readCollection(StateReader reader) throws IOException {
+    Collection<V> collection = (Collection<V>) reader.readCollection(new ArrayList<Object>());
+    if (collection.isEmpty()) {
       return null;
     }
-    Collection<V> collection = new ArrayList<V>();
-    for (int i = 0; i < size; i++) {
-      collection.add((V) ois.readObject());
-    }
     return Collections.unmodifiableCollection(collection);
   }
 
-  private static <V> Set<V> readSet(ObjectInputStream ois) throws IOException,
-      ClassNotFoundException {
-    Collection<V> collection = readCollection(ois);
+  static <V> Set<V> readSet(StateReader reader) throws IOException {
+    Collection<V> collection = readCollection(reader);
     return collection != null
         ? Collections.<V>unmodifiableSet(new HashSet<V>(collection))
         : Collections.<V>emptySet();
   }
 
-  @SuppressWarnings("unchecked")
-  private static <K, VK, VV> Map<K, Map<VK, VV>> readDoublemap(ObjectInputStream ois)
-      throws IOException, ClassNotFoundException {
-    int size = ois.readInt();
-    Map<K, Map<VK, VV>> dmap = new HashMap<K, Map<VK, VV>>();
-    for (int i = 0; i < size; i++) {
-      K key = (K) ois.readObject();
-      Map<VK, VV> value = readMap(ois);
-      dmap.put(key, value);
-    }
-    return Collections.unmodifiableMap(dmap);
-  }
-
-  private static <K, V> Map<V, Collection<K>> invertMultimap(Map<K, Collection<V>> mmap) {
-    Map<V, Collection<K>> inverted = new HashMap<V, Collection<K>>();
-    for (Map.Entry<K, Collection<V>> entry : mmap.entrySet()) {
-      for (V value : entry.getValue()) {
-        Collection<K> keys = inverted.get(value);
-        if (keys == null) {
-          keys = new ArrayList<K>();
-          inverted.put(value, keys);
-        }
-        keys.add(entry.getKey());
-      }
-    }
-    return Collections.unmodifiableMap(inverted);
-  }
-
   //
   // getters and settings
   //
@@ -306,11 +393,11 @@ public class DefaultBuildContextState implements Serializable {
   // resources
 
   public void putResource(Object resource, ResourceHolder<?> holder) {
-    resources.put(resource, holder);
+    resources.put(resource, holder != null ? holder : NO_HOLDER);
   }
 
   public ResourceHolder<?> getResource(Object resource) {
-    return resources.get(resource);
+    return unwrap(resources.get(resource));
   }
 
   public boolean isResource(Object resource) {
@@ -318,23 +405,45 @@ public class DefaultBuildContextState implements Serializable {
   }
 
   public ResourceHolder<?> removeResource(Object resource) {
-    return resources.remove(resource);
+    return unwrap(resources.remove(resource));
   }
 
+  /**
+   * Returns a snapshot of resources and their states.
+   */
   public Map<Object, ResourceHolder<?>> getResources() {
-    return Collections.unmodifiableMap(resources);
+    Map<Object, ResourceHolder<?>> copy = new HashMap<>();
+    for (Map.Entry<Object, ResourceHolder<?>> entry : resources.entrySet()) {
+      copy.put(entry.getKey(), unwrap(entry.getValue()));
+    }
+    return Collections.unmodifiableMap(copy);
+  }
+
+  /**
+   * Returns a snapshot of resource keys. Unlike {@link #getResources()}, does not require states of
+   * all resources.
+   */
+  public Collection<Object> getResourceKeys() {
+    return Collections.unmodifiableCollection(new ArrayList<>(resources.keySet()));
+  }
+
+  private static ResourceHolder<?> unwrap(ResourceHolder<?> holder) {
+    return holder != NO_HOLDER ? holder : null;
   }
 
   // outputInputs
 
-  public Collection<Object> getOutputInputs(File outputFile) {
-    return outputInputs.get(outputFile);
+  public synchronized Collection<Object> getOutputInputs(File outputFile) {
+    return copy(outputInputs.get(outputFile));
   }
 
   // outputs
 
+  /**
+   * Returns a snapshot of outputs.
+   */
   public Collection<File> getOutputs() {
-    return Collections.unmodifiableCollection(outputs);
+    return Collections.unmodifiableCollection(new ArrayList<>(outputs));
   }
 
   public boolean isOutput(Object outputFile) {
@@ -351,23 +460,24 @@ public class DefaultBuildContextState implements Serializable {
 
   // resourceOutputs
 
-  public boolean putResourceOutput(Object resource, File output) {
+  public synchronized boolean putResourceOutput(Object resource, File output) {
     put(outputInputs, output, resource);
     return put(resourceOutputs, resource, output);
   }
 
-  public Collection<File> getResourceOutputs(Object resource) {
-    return resourceOutputs.get(resource);
+  public synchronized Collection<File> getResourceOutputs(Object resource) {
+    return copy(resourceOutputs.get(resource));
   }
 
-  public Collection<File> setResourceOutputs(Object resource, Collection<File> outputs) {
+  public synchronized Collection<File> setResourceOutputs(Object resource,
+      Collection<File> outputs) {
     if (outputs == null || outputs.isEmpty()) {
       return resourceOutputs.remove(resource);
     }
-    return resourceOutputs.put(resource, outputs);
+    return resourceOutputs.put(resource, new LinkedHashSet<>(outputs));
   }
 
-  public Collection<File> removeResourceOutputs(Object resource) {
+  public synchronized Collection<File> removeResourceOutputs(Object resource) {
     Collection<File> outputs = resourceOutputs.remove(resource);
     removeOutputInputs(outputs, resource);
     return outputs;
@@ -382,7 +492,7 @@ public class DefaultBuildContextState implements Serializable {
       if (inputs == null || !inputs.remove(resource)) {
         throw new IllegalStateException();
       }
-      if (inputs != null && inputs.isEmpty()) {
+      if (inputs.isEmpty()) {
         outputInputs.remove(output);
       }
     }
@@ -394,11 +504,13 @@ public class DefaultBuildContextState implements Serializable {
     return resourceAttributes.remove(resource);
   }
 
-  public Map<String, Serializable> getResourceAttributes(Object resource) {
-    return resourceAttributes.get(resource);
+  public synchronized Map<String, Serializable> getResourceAttributes(Object resource) {
+    Map<String, Serializable> attributes = resourceAttributes.get(resource);
+    return attributes != null ? new LinkedHashMap<>(attributes) : null;
   }
 
-  public Serializable putResourceAttribute(Object resource, String key, Serializable value) {
+  public synchronized Serializable putResourceAttribute(Object resource, String key,
+      Serializable value) {
     Map<String, Serializable> attributes = resourceAttributes.get(resource);
     if (attributes == null) {
       attributes = new LinkedHashMap<String, Serializable>();
@@ -407,17 +519,17 @@ public class DefaultBuildContextState implements Serializable {
     return attributes.put(key, value);
   }
 
-  public Serializable getResourceAttribute(Object resource, String key) {
+  public synchronized Serializable getResourceAttribute(Object resource, String key) {
     Map<String, Serializable> attributes = resourceAttributes.get(resource);
     return attributes != null ? attributes.get(key) : null;
   }
 
-  public Map<String, Serializable> setResourceAttributes(Object resource,
+  public synchronized Map<String, Serializable> setResourceAttributes(Object resource,
       Map<String, Serializable> attributes) {
     if (attributes == null || attributes.isEmpty()) {
       return resourceAttributes.remove(resource);
     }
-    return resourceAttributes.put(resource, attributes);
+    return resourceAttributes.put(resource, new LinkedHashMap<>(attributes));
   }
 
   // resourceMessages
@@ -426,23 +538,31 @@ public class DefaultBuildContextState implements Serializable {
     return resourceMessages.remove(resource);
   }
 
-  public Collection<Message> getResourceMessages(Object resource) {
-    return resourceMessages.get(resource);
+  public synchronized Collection<Message> getResourceMessages(Object resource) {
+    return copy(resourceMessages.get(resource));
   }
 
-  public Collection<Message> setResourceMessages(Object resource, Collection<Message> messages) {
+  public synchronized Collection<Message> setResourceMessages(Object resource,
+      Collection<Message> messages) {
     if (messages == null || messages.isEmpty()) {
       return resourceMessages.remove(resource);
     }
-    return resourceMessages.put(resource, messages);
+    return resourceMessages.put(resource, new LinkedHashSet<>(messages));
   }
 
-  public boolean addResourceMessage(Object resource, Message message) {
+  public synchronized boolean addResourceMessage(Object resource, Message message) {
     return put(resourceMessages, resource, message);
   }
 
-  public Map<Object, Collection<Message>> getResourceMessages() {
-    return Collections.unmodifiableMap(resourceMessages);
+  /**
+   * Returns a snapshot of resources and their messages.
+   */
+  public synchronized Map<Object, Collection<Message>> getResourceMessages() {
+    Map<Object, Collection<Message>> copy = new HashMap<>();
+    for (Map.Entry<Object, Collection<Message>> entry : resourceMessages.entrySet()) {
+      copy.put(entry.getKey(), copy(entry.getValue()));
+    }
+    return Collections.unmodifiableMap(copy);
   }
 
   private static <K, V> boolean put(Map<K, Collection<V>> multimap, K key, V value) {
@@ -454,4 +574,8 @@ public class DefaultBuildContextState implements Serializable {
     return values.add(value);
   }
 
+  private static <V> Collection<V> copy(Collection<V> values) {
+    return values != null ? new ArrayList<>(values) : null;
+  }
+
 }
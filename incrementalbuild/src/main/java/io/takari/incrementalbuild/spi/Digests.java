@@ -0,0 +1,42 @@
+package io.takari.incrementalbuild.spi;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Creates message digests used to detect changes of build inputs and configuration. None of these
+ * digests need cryptographic strength, fast non-cryptographic 128-bit MurmurHash3 is used by
+ * default.
+ */
+public final class Digests {
+
+  /**
+   * System property that selects {@link MessageDigest} algorithm used instead of the default
+   * MurmurHash3, for example {@code SHA-1}. Changing the algorithm invalidates all previously
+   * calculated digests and results in full rebuild.
+   */
+  public static final String PROP_ALGORITHM = "incrementalbuild.digestAlgorithm";
+
+  private static final String ALGORITHM = System.getProperty(PROP_ALGORITHM,
+      Murmur3Digest.ALGORITHM);
+
+  private Digests() {}
+
+  /**
+   * Returns name of the algorithm of digests created by {@link #newInstance()}.
+   */
+  public static String getAlgorithm() {
+    return ALGORITHM;
+  }
+
+  public static MessageDigest newInstance() {
+    if (Murmur3Digest.ALGORITHM.equals(ALGORITHM)) {
+      return new Murmur3Digest();
+    }
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unsupported digest algorithm " + ALGORITHM, e);
+    }
+  }
+}
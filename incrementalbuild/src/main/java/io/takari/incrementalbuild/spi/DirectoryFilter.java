@@ -0,0 +1,19 @@
+package io.takari.incrementalbuild.spi;
+
+import java.io.File;
+
+/**
+ * Optionally implemented by {@link io.takari.incrementalbuild.workspace.Workspace.FileVisitor}
+ * to let the workspace skip directories that cannot contain interesting files.
+ * <p>
+ * This is a hint only, workspaces that do not support it visit files in skipped directories too,
+ * so the visitor must still check each visited file. Workspaces may call
+ * {@link #acceptDirectory(File)} concurrently from multiple threads.
+ */
+public interface DirectoryFilter {
+
+  /**
+   * Returns {@code false} if the workspace does not need to visit files under the directory.
+   */
+  public boolean acceptDirectory(File directory);
+}
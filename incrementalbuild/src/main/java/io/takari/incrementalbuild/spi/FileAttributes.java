@@ -0,0 +1,82 @@
+package io.takari.incrementalbuild.spi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Last modified timestamp and length of a regular file.
+ * <p>
+ * This is the only source of file timestamps used by incremental build. Mixing
+ * {@link File#lastModified()} and {@link BasicFileAttributes#lastModifiedTime()}, which have
+ * different resolution in some environments, results in "Unexpected input change" exceptions
+ * (https://github.com/takari/io.takari.incrementalbuild/pull/5). Timestamps are always read with
+ * {@link BasicFileAttributes}, which also lets directory walkers use attributes returned by
+ * directory listing without stat'ing each file again.
+ * <p>
+ * Timestamps reported by other workspaces, e.g. m2e, may still come from
+ * {@link File#lastModified()} and are recorded as reported. Timestamps that may come from such a
+ * coarse source are compared truncated to {@link #RESOLUTION}, all other timestamps are compared
+ * exactly, see {@link #isSameTimestamp(long, long)}.
+ */
+final class FileAttributes {
+
+  /**
+   * Resolution of file timestamps, in milliseconds. This is the coarsest resolution reported by
+   * {@link File#lastModified()} on supported platforms and JDKs.
+   */
+  static final long RESOLUTION = 1000;
+
+  /**
+   * Files modified less than this many milliseconds ago may be modified again without changing
+   * their timestamp on filesystems with coarse timestamp granularity.
+   */
+  static final long RACY_INTERVAL = 2000;
+
+  final long lastModified;
+
+  final long length;
+
+  private FileAttributes(long lastModified, long length) {
+    this.lastModified = lastModified;
+    this.length = length;
+  }
+
+  /**
+   * Returns attributes of the file, or {@code null} if the file does not exist or is not a
+   * regular file. Symbolic links are followed.
+   */
+  public static FileAttributes read(File file) {
+    BasicFileAttributes attrs;
+    try {
+      attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    } catch (IOException e) {
+      return null;
+    }
+    return attrs.isRegularFile() ? of(attrs) : null;
+  }
+
+  public static FileAttributes of(BasicFileAttributes attrs) {
+    return new FileAttributes(attrs.lastModifiedTime().toMillis(), attrs.size());
+  }
+
+  public boolean isUnmodified(long lastModified, long length) {
+    return this.length == length && isSameTimestamp(this.lastModified, lastModified);
+  }
+
+  /**
+   * Returns {@code true} if the timestamps are the same. Timestamps without sub-second part may
+   * come from {@link File#lastModified()}, which truncates to {@link #RESOLUTION} on some JDKs, if
+   * either timestamp has no sub-second part, the timestamps are compared truncated.
+   */
+  public static boolean isSameTimestamp(long a, long b) {
+    if (a == b) {
+      return true;
+    }
+    if (a % RESOLUTION != 0 && b % RESOLUTION != 0) {
+      return false; // both timestamps have sub-second resolution
+    }
+    return a - a % RESOLUTION == b - b % RESOLUTION;
+  }
+}
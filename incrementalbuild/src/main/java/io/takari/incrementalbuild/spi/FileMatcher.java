@@ -8,6 +8,17 @@ class FileMatcher {
 
   private static interface Matcher {
     public boolean matches(String path);
+
+    /**
+     * Returns {@code true} if some paths under the directory may match. False positives are
+     * allowed.
+     */
+    public boolean matchesAny(String directory);
+
+    /**
+     * Returns {@code true} if all paths under the directory are guaranteed to match.
+     */
+    public boolean matchesAll(String directory);
   }
 
   private static final Matcher MATCH_EVERYTHING = new Matcher() {
@@ -15,6 +26,16 @@ class FileMatcher {
     public boolean matches(String path) {
       return true;
     }
+
+    @Override
+    public boolean matchesAny(String directory) {
+      return true;
+    }
+
+    @Override
+    public boolean matchesAll(String directory) {
+      return true;
+    }
   };
 
   private final String basedir;
@@ -41,12 +62,35 @@ class FileMatcher {
     return true;
   }
 
+  /**
+   * Returns {@code false} if no file under the directory can match, which allows directory tree
+   * walkers to skip the directory. May return {@code true} for directories that have no matching
+   * files.
+   */
+  public boolean matchesDirectory(File directory) {
+    final String path = directory.getAbsolutePath();
+    if (basedir != null && !basedir.startsWith(path) && !path.startsWith(basedir)) {
+      // neither parent nor child of basedir
+      return false;
+    }
+    if (excludesMatcher != null && excludesMatcher.matchesAll(path)) {
+      return false;
+    }
+    if (includesMatcher != null) {
+      return includesMatcher.matchesAny(path);
+    }
+    return true;
+  }
+
   private static Matcher fromStrings(String basepath, Collection<String> globs,
       Matcher everything) {
     if (globs == null || globs.isEmpty()) {
       return null; // default behaviour appropriate for includes/excludes pattern
     }
+    final String allSuffix = File.separator + "**";
     final ArrayList<String> normalized = new ArrayList<>();
+    // patterns that match everything under matching directories, with the trailing "/**" removed
+    final ArrayList<String> directories = new ArrayList<>();
     for (String glob : globs) {
       if ("*".equals(glob) || "**".equals(glob) || "**/*".equals(glob)) {
         return everything; // matches everything
@@ -66,14 +110,29 @@ class FileMatcher {
       if (glob.endsWith("/")) {
         gb.append("**");
       }
-      normalized.add(gb.toString().replace('/', File.separatorChar));
+      String pattern = gb.toString().replace('/', File.separatorChar);
+      normalized.add(pattern);
+      if (pattern.endsWith(allSuffix)) {
+        directories.add(pattern.substring(0, pattern.length() - allSuffix.length()));
+      }
     }
     final Plexus_MatchPatterns matcher = Plexus_MatchPatterns.from(normalized);
+    final Plexus_MatchPatterns directoryMatcher = Plexus_MatchPatterns.from(directories);
     return new Matcher() {
       @Override
       public boolean matches(String path) {
         return matcher.matches(path, false);
       }
+
+      @Override
+      public boolean matchesAny(String directory) {
+        return matcher.matchesPatternStart(directory, false);
+      }
+
+      @Override
+      public boolean matchesAll(String directory) {
+        return directoryMatcher.matches(directory, false);
+      }
     };
   }
 
@@ -3,6 +3,11 @@ package io.takari.incrementalbuild.spi;
 import io.takari.incrementalbuild.ResourceStatus;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
 
 class FileState implements ResourceHolder<File> {
 
@@ -14,7 +19,28 @@ class FileState implements ResourceHolder<File> {
 
   final long length;
 
+  /**
+   * Digest of the file contents or {@code null} if the contents was not digested.
+   */
+  final byte[] hash;
+
+  /**
+   * Indicates the file was modified less than {@link FileAttributes#RACY_INTERVAL} before the
+   * state was stored. Further modifications made within the same timestamp granularity may not
+   * change the file timestamp, so racily clean file is not considered unmodified based on its
+   * timestamp and length only.
+   */
+  final boolean racy;
+
   public FileState(File file, long lastModified, long length) {
+    this(file, lastModified, length, null);
+  }
+
+  public FileState(File file, long lastModified, long length, byte[] hash) {
+    this(file, lastModified, length, hash, false);
+  }
+
+  private FileState(File file, long lastModified, long length, byte[] hash, boolean racy) {
     if (file == null) {
       // throw new IllegalArgumentException("File does not exist or cannot be read " + file);
       throw new NullPointerException();
@@ -23,6 +49,27 @@ class FileState implements ResourceHolder<File> {
     this.file = file;
     this.lastModified = lastModified;
     this.length = length;
+    this.hash = hash;
+    this.racy = racy;
+  }
+
+  public FileState asRacy() {
+    return new FileState(file, lastModified, length, hash, true);
+  }
+
+  /**
+   * Returns digest of the file contents.
+   */
+  public static byte[] digest(File file) throws IOException {
+    MessageDigest digester = Digests.newInstance();
+    try (InputStream is = new FileInputStream(file)) {
+      byte[] buf = new byte[8192];
+      int r;
+      while ((r = is.read(buf)) > 0) {
+        digester.update(buf, 0, r);
+      }
+    }
+    return digester.digest();
   }
 
   @Override
@@ -32,19 +79,16 @@ class FileState implements ResourceHolder<File> {
 
   @Override
   public ResourceStatus getStatus() {
-    if (!isPresent(file)) {
+    FileAttributes attrs = FileAttributes.read(file);
+    if (attrs == null) {
       return ResourceStatus.REMOVED;
     }
-    if (length == file.length() && lastModified == file.lastModified()) {
+    if (attrs.isUnmodified(lastModified, length)) {
       return ResourceStatus.UNMODIFIED;
     }
     return ResourceStatus.MODIFIED;
   }
 
-  private boolean isPresent(File file) {
-    return file != null && file.isFile() && file.canRead();
-  }
-
   @Override
   public int hashCode() {
     int hash = 31;
@@ -63,6 +107,7 @@ class FileState implements ResourceHolder<File> {
       return false;
     }
     FileState other = (FileState) obj;
-    return file.equals(other.file) && lastModified == other.lastModified && length == other.length;
+    return file.equals(other.file) && lastModified == other.lastModified && length == other.length
+        && Arrays.equals(hash, other.hash) && racy == other.racy;
   }
 }
@@ -0,0 +1,30 @@
+package io.takari.incrementalbuild.spi;
+
+import java.util.List;
+
+import io.takari.incrementalbuild.ResourceStatus;
+
+/**
+ * Finds files changed since their {@link FileState} was recorded. Each file is stat'ed once, large
+ * file sets are stat'ed concurrently, see {@link ParallelFileCheck}.
+ */
+class FileStateCheck {
+
+  private static final ParallelFileCheck.Check<FileState> CHANGED =
+      new ParallelFileCheck.Check<FileState>() {
+        @Override
+        public boolean fails(FileState state) {
+          return state.getStatus() != ResourceStatus.UNMODIFIED;
+        }
+      };
+
+  private FileStateCheck() {}
+
+  /**
+   * Returns one of changed, i.e. modified or removed, files or {@code null} if none of the files
+   * changed.
+   */
+  public static FileState findChanged(List<FileState> states) {
+    return ParallelFileCheck.findAny(states, CHANGED);
+  }
+}
@@ -0,0 +1,84 @@
+package io.takari.incrementalbuild.spi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Directory listings shared by {@link FilesystemWorkspace} walks. Instances are thread-safe and
+ * are meant to be shared by all workspaces of one build session.
+ * <p>
+ * Cached listing is used only if the directory timestamp did not change since the listing was
+ * read, which detects files added to or removed from the directory by other tools. Listings are
+ * also invalidated when files are written or deleted through the workspace. Only names and types
+ * of directory entries are cached. Files modified in place do not change the directory timestamp,
+ * so file attributes are read again by each walk.
+ */
+public final class FileTreeCache {
+
+  /**
+   * Directory entry, a subdirectory or a file or symbolic link to a file.
+   */
+  static final class Entry {
+    final Path path;
+
+    final boolean directory;
+
+    Entry(Path path, boolean directory) {
+      this.path = path;
+      this.directory = directory;
+    }
+  }
+
+  private static final class Listing {
+    final long lastModified;
+
+    final List<Entry> entries;
+
+    Listing(long lastModified, List<Entry> entries) {
+      this.lastModified = lastModified;
+      this.entries = entries;
+    }
+  }
+
+  private final ConcurrentMap<Path, Listing> listings = new ConcurrentHashMap<>();
+
+  /**
+   * Returns directory timestamp used to validate cached listings.
+   */
+  static long getTimestamp(Path directory) throws IOException {
+    return Files.getLastModifiedTime(directory).toMillis();
+  }
+
+  /**
+   * Returns cached listing of the directory or {@code null} if the directory has not been listed
+   * or changed since it was listed.
+   */
+  List<Entry> get(Path directory, long timestamp) {
+    Listing listing = listings.get(directory.toAbsolutePath());
+    return listing != null && listing.lastModified == timestamp ? listing.entries : null;
+  }
+
+  void put(Path directory, long timestamp, List<Entry> entries) {
+    // recently modified directories may change again without changing their timestamp
+    if (System.currentTimeMillis() - timestamp >= FileAttributes.RACY_INTERVAL) {
+      listings.put(directory.toAbsolutePath(), new Listing(timestamp, entries));
+    }
+  }
+
+  /**
+   * Invalidates cached information about the file or directory.
+   */
+  public void invalidate(File file) {
+    Path path = file.toPath().toAbsolutePath();
+    listings.remove(path);
+    Path parent = path.getParent();
+    if (parent != null) {
+      listings.remove(parent);
+    }
+  }
+}
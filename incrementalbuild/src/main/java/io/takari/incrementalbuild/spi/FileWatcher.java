@@ -0,0 +1,431 @@
+package io.takari.incrementalbuild.spi;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records changes to directory trees walked by {@link WatchingWorkspace} between builds, so builds
+ * running in a long-lived process can walk changed files only.
+ * <p>
+ * Changes are recorded against build contexts, identified by their state files. A build only gets
+ * a delta if the previous build of the same context ran in this process, was committed and no
+ * watch events were lost since, e.g. because of event queue overflow or because a watched
+ * directory was deleted or moved.
+ * <p>
+ * Watch events are delivered asynchronously, but in the order the changes were made in. To make sure
+ * changes made right before a build starts are reported to the build, the build writes a cookie file
+ * to a private directory watched by the same watch service and waits until the event of the cookie
+ * is delivered. Watched directory trees are not touched, so timestamps of user directories do not
+ * change and other processes never see cookies. If the cookie cannot be written or its event is not
+ * delivered in time, the build does not get a delta.
+ * <p>
+ * Instances are thread safe and are meant to be shared by all builds running in the process.
+ */
+public class FileWatcher implements Closeable {
+
+  private static final transient Logger log = LoggerFactory.getLogger(FileWatcher.class);
+
+  /**
+   * Maximum time, in milliseconds, to wait for events of cookie files.
+   */
+  private static final long COOKIE_TIMEOUT = 1000;
+
+  /**
+   * Time, in milliseconds, between checks for delivered cookie events. Builds do not hold the
+   * watcher lock between checks, so they do not block each other while waiting.
+   */
+  private static final long COOKIE_INTERVAL = 5;
+
+  /**
+   * Sequence number of the latest change and the kind of the change.
+   */
+  private static class Change {
+    final long sequence;
+
+    final WatchEvent.Kind<?> kind;
+
+    Change(long sequence, WatchEvent.Kind<?> kind) {
+      this.sequence = sequence;
+      this.kind = kind;
+    }
+  }
+
+  /**
+   * Start of a build and directory trees walked by the build.
+   */
+  private static class Checkpoint {
+    final long sequence;
+
+    final Set<Path> basedirs = new HashSet<>();
+
+    Checkpoint(long sequence) {
+      this.sequence = sequence;
+    }
+  }
+
+  private static class Consumer {
+    /**
+     * Latest build known to have committed its state.
+     */
+    Checkpoint committed;
+
+    /**
+     * Latest build, may or may not have committed its state.
+     */
+    Checkpoint pending;
+
+    /**
+     * State file attributes at the start of the pending build.
+     */
+    FileAttributes state;
+  }
+
+  /**
+   * Changes reported to a build relative to the previous build of the same build context.
+   */
+  static class Build {
+    final Checkpoint baseline;
+
+    final Checkpoint checkpoint;
+
+    Build(Checkpoint baseline, Checkpoint checkpoint) {
+      this.baseline = baseline;
+      this.checkpoint = checkpoint;
+    }
+
+    boolean isDelta() {
+      return baseline != null;
+    }
+  }
+
+  private final WatchService service;
+
+  /**
+   * Directory cookie files are written to, events of the directory are not recorded as changes.
+   */
+  private final Path cookieDir;
+
+  private final WatchKey cookieKey;
+
+  private final Map<WatchKey, Path> keys = new HashMap<>();
+
+  private final Map<Path, WatchKey> directories = new HashMap<>();
+
+  private final Map<Path, Change> changes = new HashMap<>();
+
+  private final Map<File, Consumer> consumers = new HashMap<>();
+
+  /**
+   * Cookie files being written, but whose create events were not delivered yet.
+   */
+  private final Set<Path> cookies = new HashSet<>();
+
+  private long cookieCount;
+
+  private long sequence;
+
+  /**
+   * Sequence number of the latest lost watch event.
+   */
+  private long overflow = -1;
+
+  public FileWatcher() throws IOException {
+    this.service = FileSystems.getDefault().newWatchService();
+    this.cookieDir = Files.createTempDirectory("incrementalbuild-watcher");
+    this.cookieKey = cookieDir.register(service, ENTRY_CREATE);
+  }
+
+  /**
+   * Starts new build of the build context with the given state file.
+   */
+  Build begin(File stateFile) {
+    Checkpoint baseline;
+    FileAttributes state;
+    Path cookie = null;
+    synchronized (this) {
+      Consumer consumer = consumers.get(stateFile);
+      if (consumer == null) {
+        consumer = new Consumer();
+        consumers.put(stateFile, consumer);
+      }
+
+      // the state file only changes when the build commits, if it did not change, the previous
+      // build either failed or did not change anything and the older baseline is still valid
+      state = FileAttributes.read(stateFile);
+      if (consumer.pending != null && !isSame(consumer.state, state)) {
+        consumer.committed = consumer.pending;
+      }
+      baseline = consumer.committed;
+      if (baseline != null) {
+        cookie = cookieDir.resolve(Long.toString(++cookieCount));
+        cookies.add(cookie);
+      }
+    }
+
+    // the cookie is awaited without holding the lock, so concurrent builds are not serialized
+    boolean synced = cookie == null || awaitCookie(cookie);
+
+    synchronized (this) {
+      Consumer consumer = consumers.get(stateFile);
+      drain();
+      if (!synced || state == null || baseline != null && overflow > baseline.sequence) {
+        if (consumer.committed == baseline) {
+          consumer.committed = null;
+        }
+        baseline = null;
+      }
+
+      Checkpoint checkpoint = new Checkpoint(sequence);
+      Build build = new Build(baseline, checkpoint);
+      consumer.pending = checkpoint;
+      consumer.state = state;
+
+      prune();
+
+      return build;
+    }
+  }
+
+  private static boolean isSame(FileAttributes a, FileAttributes b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    // exact comparison, the state file may be rewritten within timestamp resolution
+    return a.lastModified == b.lastModified && a.length == b.length;
+  }
+
+  /**
+   * Writes the cookie file and waits until its event is delivered, i.e. until events of all changes
+   * made before are delivered too. Returns {@code false} if the cookie could not be written or the
+   * wait timed out.
+   */
+  private boolean awaitCookie(Path cookie) {
+    try {
+      Files.createFile(cookie);
+    } catch (IOException e) {
+      log.debug("Could not write watch cookie", e);
+      synchronized (this) {
+        cookies.remove(cookie);
+      }
+      return false;
+    }
+    try {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COOKIE_TIMEOUT);
+      while (true) {
+        synchronized (this) {
+          // the event may have been drained by another build too
+          drain();
+          if (!cookies.contains(cookie)) {
+            return true;
+          }
+          if (System.nanoTime() - deadline > 0) {
+            log.debug("Watch event of {} was not delivered in time", cookie);
+            cookies.remove(cookie);
+            return false;
+          }
+        }
+        Thread.sleep(COOKIE_INTERVAL);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      synchronized (this) {
+        cookies.remove(cookie);
+      }
+      return false;
+    } finally {
+      try {
+        Files.deleteIfExists(cookie);
+      } catch (IOException e) {
+        log.debug("Could not delete watch cookie {}", cookie, e);
+      }
+    }
+  }
+
+  /**
+   * Forgets changes older than baselines of all known build contexts.
+   */
+  private void prune() {
+    long oldest = Long.MAX_VALUE;
+    for (Consumer consumer : consumers.values()) {
+      if (consumer.committed != null) {
+        oldest = Math.min(oldest, consumer.committed.sequence);
+      }
+      oldest = Math.min(oldest, consumer.pending.sequence);
+    }
+    Iterator<Change> iterator = changes.values().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().sequence <= oldest) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Starts watching the directory tree, if it is not watched already, and records the directory
+   * as walked by the build.
+   */
+  synchronized void register(Build build, Path basedir) throws IOException {
+    drain();
+    if (!directories.containsKey(basedir)) {
+      register(basedir, false);
+    }
+    build.checkpoint.basedirs.add(basedir);
+  }
+
+  /**
+   * Returns {@code true} if all changes to the directory tree since the baseline build are known.
+   */
+  synchronized boolean isCovered(Build build, Path basedir) {
+    if (!build.isDelta()) {
+      return false;
+    }
+    for (Path walked : build.baseline.basedirs) {
+      if (basedir.startsWith(walked)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns files and directories changed since the baseline build, sorted by path.
+   */
+  synchronized Map<Path, WatchEvent.Kind<?>> getChanges(Build build, Path basedir) {
+    drain();
+    Map<Path, WatchEvent.Kind<?>> result = new TreeMap<>();
+    for (Map.Entry<Path, Change> entry : changes.entrySet()) {
+      Change change = entry.getValue();
+      if (change.sequence > build.baseline.sequence && entry.getKey().startsWith(basedir)) {
+        result.put(entry.getKey(), change.kind);
+      }
+    }
+    return result;
+  }
+
+  /** for testing purposes */
+  synchronized WatchEvent.Kind<?> getChange(Path path) {
+    drain();
+    Change change = changes.get(path);
+    return change != null ? change.kind : null;
+  }
+
+  private void register(Path root, final boolean created) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+          throws IOException {
+        if (!directories.containsKey(dir)) {
+          WatchKey key = dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+          keys.put(key, dir);
+          directories.put(dir, key);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (created) {
+          // files created before the new directory was registered
+          changes.put(file, new Change(sequence, ENTRY_CREATE));
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void unregister(Path root) {
+    Iterator<Map.Entry<Path, WatchKey>> iterator = directories.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Path, WatchKey> entry = iterator.next();
+      if (entry.getKey().startsWith(root)) {
+        entry.getValue().cancel();
+        keys.remove(entry.getValue());
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Records all watch events delivered so far.
+   */
+  private void drain() {
+    WatchKey key = service.poll();
+    if (key != null) {
+      sequence++;
+      do {
+        process(key);
+      } while ((key = service.poll()) != null);
+    }
+  }
+
+  private void process(WatchKey key) {
+    Path dir = keys.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        overflow = sequence;
+        continue;
+      }
+      if (key == cookieKey) {
+        cookies.remove(cookieDir.resolve((Path) event.context()));
+        continue;
+      }
+      if (dir == null) {
+        continue; // unregistered while the event was queued
+      }
+      Path path = dir.resolve((Path) event.context());
+      if (event.kind() == ENTRY_DELETE && directories.containsKey(path)) {
+        // deleted or moved directory, files it contained are not known
+        unregister(path);
+        overflow = sequence;
+      } else if (event.kind() == ENTRY_CREATE
+          && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+        try {
+          register(path, true);
+        } catch (IOException e) {
+          log.debug("Could not watch directory {}", path, e);
+          overflow = sequence;
+        }
+      }
+      changes.put(path, new Change(sequence, event.kind()));
+    }
+    if (!key.reset() && keys.containsKey(key)) {
+      unregister(keys.get(key));
+      overflow = sequence;
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      service.close();
+    } finally {
+      Files.deleteIfExists(cookieDir);
+    }
+  }
+}
@@ -0,0 +1,18 @@
+package io.takari.incrementalbuild.spi;
+
+import java.io.File;
+
+/**
+ * Implemented by workspaces that can tell whether files are written directly to the filesystem,
+ * i.e. without an IDE or other workspace observers being notified of the change. Build state files
+ * in such locations are written atomically and the state journal is appended in place, state files
+ * in other locations are always written through
+ * {@link io.takari.incrementalbuild.workspace.Workspace#newOutputStream(File)}.
+ */
+public interface FilesystemAccess {
+
+  /**
+   * Returns {@code true} if the file can be written directly to the filesystem.
+   */
+  public boolean isFilesystem(File file);
+}
@@ -1,17 +1,27 @@
 package io.takari.incrementalbuild.spi;
 
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 
 import io.takari.incrementalbuild.workspace.Workspace;
 
-public class FilesystemWorkspace implements Workspace {
+public class FilesystemWorkspace implements Workspace, FilesystemAccess {
+
+  private final FileTreeCache cache;
+
+  public FilesystemWorkspace() {
+    this(null);
+  }
+
+  /**
+   * Creates workspace that shares directory listings with other workspaces using the same cache,
+   * see {@link FileTreeCache}.
+   */
+  public FilesystemWorkspace(FileTreeCache cache) {
+    this.cache = cache;
+  }
 
   @Override
   public Mode getMode() {
@@ -25,6 +35,9 @@ public class FilesystemWorkspace implements Workspace {
 
   @Override
   public void deleteFile(File file) throws IOException {
+    if (cache != null) {
+      cache.invalidate(file);
+    }
     if (file.exists() && !file.delete()) {
       throw new IOException("Could not delete file " + file);
     }
@@ -34,16 +47,41 @@ public class FilesystemWorkspace implements Workspace {
   public void processOutput(File outputFile) {}
 
   @Override
-  public OutputStream newOutputStream(File file) throws IOException {
-    return new IncrementalFileOutputStream(file);
+  public boolean isFilesystem(File file) {
+    return true;
+  }
+
+  @Override
+  public OutputStream newOutputStream(final File file) throws IOException {
+    if (cache == null) {
+      return new IncrementalFileOutputStream(file);
+    }
+    cache.invalidate(file);
+    return new FilterOutputStream(new IncrementalFileOutputStream(file)) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          // the file may have been walked while it was written
+          cache.invalidate(file);
+        }
+      }
+    };
   }
 
   @Override
   public ResourceStatus getResourceStatus(File file, long lastModified, long length) {
-    if (!isPresent(file)) {
+    FileAttributes attrs = FileAttributes.read(file);
+    if (attrs == null) {
       return ResourceStatus.REMOVED;
     }
-    if (length == file.length() && lastModified == file.lastModified()) {
+    if (attrs.isUnmodified(lastModified, length)) {
       return ResourceStatus.UNMODIFIED;
     }
     return ResourceStatus.MODIFIED;
@@ -55,25 +93,11 @@ public class FilesystemWorkspace implements Workspace {
   }
 
   @Override
-  public void walk(File basedir, final FileVisitor visitor) throws IOException {
+  public void walk(File basedir, FileVisitor visitor) throws IOException {
     if (!basedir.isDirectory()) {
       return;
     }
-    final Path basepath = basedir.toPath();
-    Files.walkFileTree(basepath, new SimpleFileVisitor<Path>() {
-      @Override
-      public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
-        // BasicFileAttributes#lastModifiedTime() and File#lastModified() appear to have different
-        // resolution in some environments and mixing the two results in "Unexpected input change"
-        // exceptions.
-        // https://github.com/takari/io.takari.incrementalbuild/pull/5
-        final File file = path.toFile();
-        final long lastModified = file.lastModified();
-        final long length = file.length();
-        visitor.visit(file, lastModified, length, ResourceStatus.NEW);
-        return FileVisitResult.CONTINUE;
-      }
-    });
+    ParallelFileWalker.walk(basedir.toPath(), visitor, cache);
   }
 
 }
@@ -0,0 +1,410 @@
+package io.takari.incrementalbuild.spi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-only build state backed by memory-mapped state file. Only configuration, outputs and the
+ * record index are decoded when the state is loaded. Resource state, outputs, attributes and
+ * messages of individual resources are decoded the first time they are requested. Inputs of an
+ * output are found using outputs listed in the record index, only records of those inputs are
+ * decoded.
+ * <p>
+ * Journal segments appended to the state file are applied on top of the snapshot when the state
+ * is loaded, records of later segments replace records of the same resources from earlier
+ * segments.
+ */
+class MappedBuildContextState extends DefaultBuildContextState {
+
+  private static final transient Logger log = LoggerFactory
+      .getLogger(MappedBuildContextState.class);
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Windows does not allow modification of memory-mapped files and there is no supported way to
+   * unmap them. Read state files into heap there, so they can be overwritten at the end of the
+   * build.
+   */
+  private static final boolean MMAP = File.separatorChar == '/';
+
+  private static class Record {
+    /**
+     * Resource key instance read from the index, used as the key of all decoded state maps.
+     */
+    final Object key;
+
+    final StateReader reader;
+
+    final int flags;
+
+    final int offset;
+
+    Record(Object key, StateReader reader, int flags, int offset) {
+      this.key = key;
+      this.reader = reader;
+      this.flags = flags;
+      this.offset = offset;
+    }
+  }
+
+  /**
+   * Records of resources that have not been decoded yet.
+   */
+  private final transient Map<Object, Record> pending;
+
+  /**
+   * Keys of all resources (i.e. not outputs, attributes or messages only) known to this state.
+   */
+  private final Set<Object> resourceKeys;
+
+  /**
+   * Keys of all resources that have resource state, outputs, attributes or messages.
+   */
+  private final Set<Object> recordKeys;
+
+  /**
+   * Keys of records that list the output in the record index. May include keys of records that
+   * were replaced by journal records without the output.
+   */
+  private final Map<File, Collection<Object>> outputRecords;
+
+  private final long journalSize;
+
+  private final Map<Object, ResourceHolder<?>> resources;
+
+  private final Map<Object, Collection<File>> resourceOutputs;
+
+  private final Map<File, Collection<Object>> outputInputs;
+
+  private final Map<Object, Map<String, Serializable>> resourceAttributes;
+
+  private final Map<Object, Collection<Message>> resourceMessages;
+
+  private MappedBuildContextState(Map<String, Serializable> configuration, Set<File> outputs,
+      Map<Object, Record> pending, Set<Object> resourceKeys, Set<Object> recordKeys,
+      Map<File, Collection<Object>> outputRecords, long journalSize,
+      Map<Object, ResourceHolder<?>> resources, Map<Object, Collection<File>> resourceOutputs,
+      Map<File, Collection<Object>> outputInputs,
+      Map<Object, Map<String, Serializable>> resourceAttributes,
+      Map<Object, Collection<Message>> resourceMessages) {
+    super(configuration //
+        , Collections.unmodifiableMap(resources) //
+        , outputs //
+        , Collections.unmodifiableMap(resourceOutputs) //
+        , Collections.unmodifiableMap(outputInputs) //
+        , Collections.unmodifiableMap(resourceAttributes) //
+        , Collections.unmodifiableMap(resourceMessages));
+    this.pending = pending;
+    this.resourceKeys = Collections.unmodifiableSet(resourceKeys);
+    this.recordKeys = Collections.unmodifiableSet(recordKeys);
+    this.outputRecords = outputRecords;
+    this.journalSize = journalSize;
+    this.resources = resources;
+    this.resourceOutputs = resourceOutputs;
+    this.outputInputs = outputInputs;
+    this.resourceAttributes = resourceAttributes;
+    this.resourceMessages = resourceMessages;
+  }
+
+  public static MappedBuildContextState load(File stateFile) throws IOException {
+    ByteBuffer buf = map(stateFile);
+
+    StateReader reader = new StateReader(buf);
+    if (reader.getSegment() != StateFormat.SEGMENT_SNAPSHOT) {
+      throw new IOException("Missing incremental build state snapshot");
+    }
+    Map<String, Serializable> configuration = readMap(reader);
+    Set<File> outputs = new HashSet<>(DefaultBuildContextState.<File>readSet(reader));
+    Map<Object, Record> pending = new HashMap<>();
+    Set<Object> resourceKeys = new LinkedHashSet<>();
+    Set<Object> recordKeys = new LinkedHashSet<>();
+    Map<File, Collection<Object>> outputRecords = new HashMap<>();
+    readIndex(reader, pending, resourceKeys, recordKeys, outputRecords);
+    final int snapshotSize = buf.position();
+
+    long journalSize = 0;
+    while (buf.hasRemaining()) {
+      int position = buf.position();
+      try {
+        reader = new StateReader(buf);
+      } catch (IOException e) {
+        // the build was interrupted while the journal segment was appended, all preceding
+        // segments are complete and consistent. journal is rewritten by the next build.
+        log.info("Incomplete incremental build state journal {} at offset {}, using last complete"
+            + " state", stateFile, position);
+        log.debug("Could not read incremental build state journal {}", stateFile, e);
+        journalSize = -1;
+        break;
+      }
+      if (reader.getSegment() != StateFormat.SEGMENT_JOURNAL) {
+        throw new IOException("Unexpected incremental build state segment " + reader.getSegment());
+      }
+      outputs.addAll(DefaultBuildContextState.<File>readSet(reader));
+      outputs.removeAll(DefaultBuildContextState.<File>readSet(reader));
+      readIndex(reader, pending, resourceKeys, recordKeys, outputRecords);
+      journalSize = buf.position() - snapshotSize;
+    }
+
+    MappedBuildContextState state = new MappedBuildContextState(configuration,
+        Collections.unmodifiableSet(outputs), pending, resourceKeys, recordKeys, outputRecords,
+        journalSize,
+        new HashMap<Object, ResourceHolder<?>>(), new HashMap<Object, Collection<File>>(),
+        new HashMap<File, Collection<Object>>(),
+        new HashMap<Object, Map<String, Serializable>>(),
+        new HashMap<Object, Collection<Message>>());
+
+    // java serialized values may not be resolvable by the classloader of a later caller, decode
+    // them eagerly, so incompatible state is discarded when it is loaded
+    for (Record record : new ArrayList<>(pending.values())) {
+      if ((record.flags & StateFormat.RECORD_SERIALIZABLE) != 0) {
+        state.decodeRecord(pending.remove(record.key));
+      }
+    }
+
+    return state;
+  }
+
+  private static void readIndex(StateReader reader, Map<Object, Record> pending,
+      Set<Object> resourceKeys, Set<Object> recordKeys, Map<File, Collection<Object>> outputRecords)
+      throws IOException {
+    reader.seek(reader.getIndexPosition());
+    int size = reader.readCount();
+    for (int i = 0; i < size; i++) {
+      Object key = reader.readObject();
+      int flags = reader.readByte();
+      long offset = reader.readVarint();
+      if (offset >= reader.getIndexPosition()) {
+        throw new IOException("Malformed record offset " + offset);
+      }
+      if ((flags & StateFormat.RECORD_RESOURCE) != 0) {
+        resourceKeys.add(key);
+      } else {
+        resourceKeys.remove(key);
+      }
+      if (flags != 0) {
+        recordKeys.add(key);
+      } else {
+        recordKeys.remove(key);
+      }
+      if ((flags & StateFormat.RECORD_OUTPUTS) != 0) {
+        for (File output : DefaultBuildContextState.<File>readCollection(reader)) {
+          Collection<Object> keys = outputRecords.get(output);
+          if (keys == null) {
+            keys = new LinkedHashSet<>();
+            outputRecords.put(output, keys);
+          }
+          keys.add(key);
+        }
+      }
+      pending.put(key, new Record(key, reader, flags, (int) offset));
+    }
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    try (FileInputStream is = new FileInputStream(file)) {
+      FileChannel channel = is.getChannel();
+      if (MMAP) {
+        return channel.map(MapMode.READ_ONLY, 0, channel.size());
+      }
+      byte[] bytes = new byte[(int) channel.size()];
+      int off = 0, r;
+      while (off < bytes.length && (r = is.read(bytes, off, bytes.length - off)) > 0) {
+        off += r;
+      }
+      return ByteBuffer.wrap(bytes, 0, off);
+    }
+  }
+
+  // records share StateReader instances, which are not thread safe, decoding is synchronized on
+  // the state along with all accessors that decode records
+  private synchronized void decode(Object resource) {
+    Record record = pending.remove(resource);
+    if (record != null) {
+      try {
+        decodeRecord(record);
+      } catch (IOException e) {
+        // segment checksums were verified when the state was loaded, but records are only
+        // decoded on demand. malformed record is either a bug or the file was modified in place
+        throw new IllegalStateException("Corrupted incremental build state record " + resource,
+            e);
+      }
+    }
+  }
+
+  /** for testing purposes */
+  synchronized boolean isDecoded(Object resource) {
+    return !pending.containsKey(resource);
+  }
+
+  private synchronized void decodeAll() {
+    for (Object resource : new ArrayList<>(pending.keySet())) {
+      decode(resource);
+    }
+  }
+
+  private void decodeRecord(Record record) throws IOException {
+    Object resource = record.key;
+    StateReader reader = record.reader;
+    reader.seek(record.offset);
+    int flags = reader.readByte();
+    if ((flags & StateFormat.RECORD_RESOURCE) != 0) {
+      resources.put(resource, (ResourceHolder<?>) reader.readObject());
+    }
+    if ((flags & StateFormat.RECORD_OUTPUTS) != 0) {
+      Collection<File> outputs = readCollection(reader);
+      resourceOutputs.put(resource, outputs);
+      for (File output : outputs) {
+        Collection<Object> inputs = outputInputs.get(output);
+        if (inputs == null) {
+          inputs = new ArrayList<Object>();
+          outputInputs.put(output, inputs);
+        }
+        inputs.add(resource);
+      }
+    }
+    if ((flags & StateFormat.RECORD_ATTRIBUTES) != 0) {
+      Map<String, Serializable> attributes = readMap(reader);
+      resourceAttributes.put(resource, attributes);
+    }
+    if ((flags & StateFormat.RECORD_MESSAGES) != 0) {
+      Collection<Message> messages = readCollection(reader);
+      resourceMessages.put(resource, messages);
+    }
+  }
+
+  @Override
+  Set<Object> getRecordKeys() {
+    return recordKeys;
+  }
+
+  @Override
+  long getJournalSize() {
+    return journalSize;
+  }
+
+  @Override
+  public synchronized ResourceHolder<?> getResource(Object resource) {
+    decode(resource);
+    return super.getResource(resource);
+  }
+
+  @Override
+  public boolean isResource(Object resource) {
+    return resourceKeys.contains(resource);
+  }
+
+  @Override
+  public Collection<Object> getResourceKeys() {
+    return resourceKeys;
+  }
+
+  @Override
+  public Map<Object, ResourceHolder<?>> getResources() {
+    return new AbstractMap<Object, ResourceHolder<?>>() {
+      @Override
+      public Set<Object> keySet() {
+        return resourceKeys;
+      }
+
+      @Override
+      public int size() {
+        return resourceKeys.size();
+      }
+
+      @Override
+      public boolean containsKey(Object key) {
+        return resourceKeys.contains(key);
+      }
+
+      @Override
+      public ResourceHolder<?> get(Object key) {
+        return getResource(key);
+      }
+
+      @Override
+      public Set<Map.Entry<Object, ResourceHolder<?>>> entrySet() {
+        decodeAll();
+        return MappedBuildContextState.super.getResources().entrySet();
+      }
+
+      @Override
+      public Collection<ResourceHolder<?>> values() {
+        decodeAll();
+        return MappedBuildContextState.super.getResources().values();
+      }
+    };
+  }
+
+  @Override
+  public synchronized Collection<Object> getOutputInputs(File outputFile) {
+    Collection<Object> keys = outputRecords.get(outputFile);
+    if (keys != null) {
+      for (Object key : keys) {
+        decode(key);
+      }
+    }
+    return super.getOutputInputs(outputFile);
+  }
+
+  @Override
+  public synchronized Collection<File> getResourceOutputs(Object resource) {
+    decode(resource);
+    return super.getResourceOutputs(resource);
+  }
+
+  @Override
+  public synchronized Map<String, Serializable> getResourceAttributes(Object resource) {
+    decode(resource);
+    return super.getResourceAttributes(resource);
+  }
+
+  @Override
+  public synchronized Serializable getResourceAttribute(Object resource, String key) {
+    decode(resource);
+    return super.getResourceAttribute(resource, key);
+  }
+
+  @Override
+  public synchronized Collection<Message> getResourceMessages(Object resource) {
+    decode(resource);
+    return super.getResourceMessages(resource);
+  }
+
+  @Override
+  public synchronized Map<Object, Collection<Message>> getResourceMessages() {
+    decodeAll();
+    return super.getResourceMessages();
+  }
+
+  @Override
+  public synchronized String getStats() {
+    decodeAll();
+    return super.getStats();
+  }
+
+  @Override
+  public synchronized void storeTo(OutputStream os) throws IOException {
+    decodeAll();
+    super.storeTo(os);
+  }
+
+}
@@ -0,0 +1,166 @@
+package io.takari.incrementalbuild.spi;
+
+import java.security.MessageDigest;
+
+/**
+ * Streaming 128-bit MurmurHash3 (x64 variant, seed 0) exposed as {@link MessageDigest}. Produces
+ * the same bytes as Guava {@code Hashing.murmur3_128()}.
+ * <p>
+ * Not suitable for cryptographic purposes, used to detect changes of build inputs and
+ * configuration only.
+ */
+final class Murmur3Digest extends MessageDigest implements Cloneable {
+
+  public static final String ALGORITHM = "MURMUR3-128";
+
+  private static final long C1 = 0x87c37b91114253d5L;
+
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private final byte[] block = new byte[16];
+
+  private int blockLength;
+
+  private long h1;
+
+  private long h2;
+
+  private long length;
+
+  public Murmur3Digest() {
+    super(ALGORITHM);
+  }
+
+  @Override
+  protected int engineGetDigestLength() {
+    return 16;
+  }
+
+  @Override
+  protected void engineUpdate(byte input) {
+    block[blockLength++] = input;
+    if (blockLength == 16) {
+      mix(block, 0);
+      blockLength = 0;
+    }
+    length++;
+  }
+
+  @Override
+  protected void engineUpdate(byte[] input, int offset, int len) {
+    length += len;
+    int end = offset + len;
+    if (blockLength > 0) {
+      int n = Math.min(16 - blockLength, len);
+      System.arraycopy(input, offset, block, blockLength, n);
+      blockLength += n;
+      offset += n;
+      if (blockLength < 16) {
+        return;
+      }
+      mix(block, 0);
+      blockLength = 0;
+    }
+    for (; offset + 16 <= end; offset += 16) {
+      mix(input, offset);
+    }
+    blockLength = end - offset;
+    System.arraycopy(input, offset, block, 0, blockLength);
+  }
+
+  @Override
+  protected byte[] engineDigest() {
+    long k1 = 0;
+    long k2 = 0;
+    for (int i = blockLength - 1; i >= 8; i--) {
+      k2 = (k2 << 8) | (block[i] & 0xffL);
+    }
+    for (int i = Math.min(blockLength, 8) - 1; i >= 0; i--) {
+      k1 = (k1 << 8) | (block[i] & 0xffL);
+    }
+    h1 ^= mixK1(k1);
+    h2 ^= mixK2(k2);
+
+    h1 ^= length;
+    h2 ^= length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix(h1);
+    h2 = fmix(h2);
+    h1 += h2;
+    h2 += h1;
+
+    byte[] digest = new byte[16];
+    for (int i = 0; i < 8; i++) {
+      digest[i] = (byte) (h1 >>> (8 * i));
+      digest[i + 8] = (byte) (h2 >>> (8 * i));
+    }
+    engineReset();
+    return digest;
+  }
+
+  @Override
+  protected void engineReset() {
+    blockLength = 0;
+    h1 = 0;
+    h2 = 0;
+    length = 0;
+  }
+
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    Murmur3Digest clone = new Murmur3Digest();
+    System.arraycopy(block, 0, clone.block, 0, blockLength);
+    clone.blockLength = blockLength;
+    clone.h1 = h1;
+    clone.h2 = h2;
+    clone.length = length;
+    return clone;
+  }
+
+  private void mix(byte[] bytes, int offset) {
+    h1 ^= mixK1(getLong(bytes, offset));
+    h1 = Long.rotateLeft(h1, 27);
+    h1 += h2;
+    h1 = h1 * 5 + 0x52dce729;
+
+    h2 ^= mixK2(getLong(bytes, offset + 8));
+    h2 = Long.rotateLeft(h2, 31);
+    h2 += h1;
+    h2 = h2 * 5 + 0x38495ab5;
+  }
+
+  private static long getLong(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xffL) //
+        | (bytes[offset + 1] & 0xffL) << 8 //
+        | (bytes[offset + 2] & 0xffL) << 16 //
+        | (bytes[offset + 3] & 0xffL) << 24 //
+        | (bytes[offset + 4] & 0xffL) << 32 //
+        | (bytes[offset + 5] & 0xffL) << 40 //
+        | (bytes[offset + 6] & 0xffL) << 48 //
+        | (bytes[offset + 7] & 0xffL) << 56;
+  }
+
+  private static long mixK1(long k1) {
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    k1 *= C2;
+    return k1;
+  }
+
+  private static long mixK2(long k2) {
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    k2 *= C1;
+    return k2;
+  }
+
+  private static long fmix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+}
@@ -0,0 +1,92 @@
+package io.takari.incrementalbuild.spi;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Finds a file that fails a filesystem check. Large file lists are split and checked concurrently
+ * using the pool shared with {@link ParallelFileWalker}, the search stops as soon as any file
+ * fails the check.
+ */
+class ParallelFileCheck<T> extends RecursiveAction {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Number of files checked by a single task.
+   */
+  private static final int THRESHOLD = 512;
+
+  public static interface Check<T> {
+    /**
+     * Returns {@code true} if the file fails the check.
+     */
+    public boolean fails(T file);
+  }
+
+  private final List<T> files;
+
+  private final int from;
+
+  private final int to;
+
+  private final Check<? super T> check;
+
+  private final AtomicReference<T> failed;
+
+  private ParallelFileCheck(List<T> files, int from, int to, Check<? super T> check,
+      AtomicReference<T> failed) {
+    this.files = files;
+    this.from = from;
+    this.to = to;
+    this.check = check;
+    this.failed = failed;
+  }
+
+  /**
+   * Returns one of the files that fail the check, or {@code null} if all files pass the check.
+   */
+  public static <T> T findAny(List<T> files, Check<? super T> check) {
+    AtomicReference<T> failed = new AtomicReference<>();
+    ParallelFileCheck<T> task = new ParallelFileCheck<>(files, 0, files.size(), check, failed);
+    if (files.size() <= THRESHOLD) {
+      task.compute();
+    } else if (getPool() == ParallelFileWalker.PoolHolder.POOL) {
+      task.invoke(); // already running in the pool, see #submit
+    } else {
+      ParallelFileWalker.PoolHolder.POOL.invoke(task);
+    }
+    return failed.get();
+  }
+
+  /**
+   * Starts checking the files in the background, see {@link #findAny(List, Check)}.
+   */
+  public static <T> ForkJoinTask<T> submit(final List<T> files, final Check<? super T> check) {
+    return ParallelFileWalker.PoolHolder.POOL.submit(new Callable<T>() {
+      @Override
+      public T call() {
+        return findAny(files, check);
+      }
+    });
+  }
+
+  @Override
+  protected void compute() {
+    if (to - from <= THRESHOLD) {
+      for (int i = from; i < to && failed.get() == null; i++) {
+        T file = files.get(i);
+        if (check.fails(file)) {
+          failed.compareAndSet(null, file);
+        }
+      }
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    invokeAll(new ParallelFileCheck<>(files, from, middle, check, failed),
+        new ParallelFileCheck<>(files, middle, to, check, failed));
+  }
+}
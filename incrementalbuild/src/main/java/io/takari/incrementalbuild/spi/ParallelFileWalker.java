@@ -0,0 +1,170 @@
+package io.takari.incrementalbuild.spi;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import io.takari.incrementalbuild.workspace.Workspace.FileVisitor;
+import io.takari.incrementalbuild.workspace.Workspace.ResourceStatus;
+
+/**
+ * Walks file trees using shared {@link ForkJoinPool}. Directories are listed and their files are
+ * stat'ed concurrently, each file is stat'ed once, while files are delivered to the
+ * {@link FileVisitor} on the calling thread in deterministic order: directory entries are sorted
+ * by name and subdirectories are visited depth-first, in place of their directory entry.
+ * <p>
+ * If the visitor implements {@link DirectoryFilter}, directories rejected by the filter are not
+ * listed.
+ */
+class ParallelFileWalker {
+
+  static class PoolHolder {
+    // worker threads are daemon threads and are not kept alive when idle
+    // the pool is also used by ParallelFileCheck
+    static final ForkJoinPool POOL = new ForkJoinPool();
+  }
+
+  private static class Listing {
+    /**
+     * Files, as {@link VisitedFile}, and {@link DirectoryTask} instances, in visit order.
+     */
+    final List<Object> entries = new ArrayList<>();
+
+    IOException error;
+  }
+
+  private static class VisitedFile {
+    final Path path;
+
+    final FileAttributes attrs;
+
+    VisitedFile(Path path, FileAttributes attrs) {
+      this.path = path;
+      this.attrs = attrs;
+    }
+  }
+
+  private static class DirectoryTask extends RecursiveTask<Listing> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Path directory;
+
+    private final DirectoryFilter filter;
+
+    private final FileTreeCache cache;
+
+    DirectoryTask(Path directory, DirectoryFilter filter, FileTreeCache cache) {
+      this.directory = directory;
+      this.filter = filter;
+      this.cache = cache;
+    }
+
+    @Override
+    protected Listing compute() {
+      Listing listing = new Listing();
+      try {
+        list(listing);
+      } catch (IOException e) {
+        // reported on the visiting thread, see #visit
+        listing.error = e;
+      }
+      return listing;
+    }
+
+    private void list(Listing listing) throws IOException {
+      long timestamp = 0;
+      if (cache != null) {
+        // read before listing, concurrent modifications invalidate the listing
+        timestamp = FileTreeCache.getTimestamp(directory);
+        List<FileTreeCache.Entry> entries = cache.get(directory, timestamp);
+        if (entries != null) {
+          for (FileTreeCache.Entry entry : entries) {
+            if (entry.directory) {
+              addDirectory(listing, entry.path);
+            } else {
+              // files may be modified in place without changing the directory timestamp
+              addFile(listing, entry.path, FileAttributes.read(entry.path.toFile()));
+            }
+          }
+          return;
+        }
+      }
+      List<Path> children = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+        for (Path child : stream) {
+          children.add(child);
+        }
+      }
+      Collections.sort(children);
+      List<FileTreeCache.Entry> entries = new ArrayList<>(children.size());
+      for (Path child : children) {
+        BasicFileAttributes attrs =
+            Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (attrs.isDirectory()) {
+          entries.add(new FileTreeCache.Entry(child, true));
+          addDirectory(listing, child);
+        } else {
+          // symbolic links are not followed when listing directories, but linked files are
+          // visited with attributes of the link target. dangling links are skipped.
+          entries.add(new FileTreeCache.Entry(child, false));
+          FileAttributes fileAttrs = attrs.isSymbolicLink() ? FileAttributes.read(child.toFile())
+              : FileAttributes.of(attrs);
+          addFile(listing, child, fileAttrs);
+        }
+      }
+      if (cache != null) {
+        cache.put(directory, timestamp, Collections.unmodifiableList(entries));
+      }
+    }
+
+    private void addDirectory(Listing listing, Path child) {
+      if (filter == null || filter.acceptDirectory(child.toFile())) {
+        DirectoryTask task = new DirectoryTask(child, filter, cache);
+        task.fork();
+        listing.entries.add(task);
+      }
+    }
+
+    private static void addFile(Listing listing, Path child, FileAttributes attrs) {
+      if (attrs != null) {
+        listing.entries.add(new VisitedFile(child, attrs));
+      }
+    }
+  }
+
+  /**
+   * Walks the file tree, using and populating the optional cache.
+   */
+  public static void walk(Path basedir, FileVisitor visitor, FileTreeCache cache)
+      throws IOException {
+    DirectoryFilter filter = visitor instanceof DirectoryFilter ? (DirectoryFilter) visitor : null;
+    DirectoryTask root = new DirectoryTask(basedir, filter, cache);
+    PoolHolder.POOL.execute(root);
+    visit(root, visitor);
+  }
+
+  private static void visit(DirectoryTask task, FileVisitor visitor) throws IOException {
+    Listing listing = task.join();
+    if (listing.error != null) {
+      throw listing.error;
+    }
+    for (Object entry : listing.entries) {
+      if (entry instanceof DirectoryTask) {
+        visit((DirectoryTask) entry, visitor);
+      } else {
+        VisitedFile file = (VisitedFile) entry;
+        visitor.visit(file.path.toFile(), file.attrs.lastModified, file.attrs.length,
+            ResourceStatus.NEW);
+      }
+    }
+  }
+}
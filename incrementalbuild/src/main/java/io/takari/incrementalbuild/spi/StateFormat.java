@@ -0,0 +1,100 @@
+package io.takari.incrementalbuild.spi;
+
+import java.nio.charset.Charset;
+
+/**
+ * Constants of the binary incremental build state format.
+ * <p>
+ * State file starts with {@link #MAGIC}, {@link #VERSION}, segment type, segment length and CRC32
+ * checksum of the rest of the segment, followed by string, directory and path tables and the
+ * state body. Strings in the body are references into the string table and files are references
+ * into the path table. Each path table entry is a reference to the parent directory and the file
+ * name, directories are encoded the same way, which stores common directory prefixes only once.
+ * Lengths, counts and timestamps are varint encoded. Each value is prefixed with a one-byte tag,
+ * arbitrary {@link java.io.Serializable} values are written using java serialization.
+ * <p>
+ * The body starts with build configuration and outputs, followed by per-resource records and the
+ * record index. Each record holds resource state, outputs, attributes and messages of one
+ * resource; the index maps resource keys to record offsets, which allows records to be decoded
+ * on demand, and also lists outputs of each resource. Index offset is written in the header,
+ * after the path table.
+ * <p>
+ * State file holds one snapshot segment, optionally followed by journal segments appended by
+ * later builds. Each segment is self-contained, i.e. has its own header and tables. Journal
+ * segment body holds added and removed build outputs followed by records of changed resources and
+ * the record index; records of later segments replace records of the same resources from earlier
+ * segments.
+ *
+ * @see StateWriter
+ * @see StateReader
+ */
+final class StateFormat {
+
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  static final int MAGIC = 0x49424353; // IBCS
+
+  static final int VERSION = 6;
+
+  static final byte SEGMENT_SNAPSHOT = 0;
+
+  static final byte SEGMENT_JOURNAL = 1;
+
+  static final byte TAG_NULL = 0;
+
+  static final byte TAG_STRING = 1;
+
+  static final byte TAG_TRUE = 2;
+
+  static final byte TAG_FALSE = 3;
+
+  static final byte TAG_INTEGER = 4;
+
+  static final byte TAG_LONG = 5;
+
+  static final byte TAG_FILE = 6;
+
+  static final byte TAG_FILESTATE = 7;
+
+  static final byte TAG_MESSAGE = 8;
+
+  static final byte TAG_BYTES = 9;
+
+  static final byte TAG_ARRAYLIST = 10;
+
+  static final byte TAG_HASHSET = 11;
+
+  static final byte TAG_LINKEDHASHSET = 12;
+
+  static final byte TAG_HASHMAP = 13;
+
+  static final byte TAG_LINKEDHASHMAP = 14;
+
+  static final byte TAG_SERIALIZABLE = 15;
+
+  /**
+   * {@link FileState} followed by the file contents digest.
+   */
+  static final byte TAG_HASHED_FILESTATE = 16;
+
+  /**
+   * Racily clean {@link FileState}, followed by the file state value, see
+   * {@link FileState#racy}.
+   */
+  static final byte TAG_RACY_FILESTATE = 17;
+
+  static final int RECORD_RESOURCE = 0x01;
+
+  static final int RECORD_OUTPUTS = 0x02;
+
+  static final int RECORD_ATTRIBUTES = 0x04;
+
+  static final int RECORD_MESSAGES = 0x08;
+
+  /**
+   * Index-only flag, the record includes java serialized values.
+   */
+  static final int RECORD_SERIALIZABLE = 0x10;
+
+  private StateFormat() {}
+}
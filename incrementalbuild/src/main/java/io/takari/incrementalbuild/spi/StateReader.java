@@ -0,0 +1,386 @@
+package io.takari.incrementalbuild.spi;
+
+import io.takari.incrementalbuild.MessageSeverity;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Decodes incremental build state written by {@link StateWriter}.
+ * <p>
+ * Any malformed input, including truncated buffer and checksum mismatch, is reported as
+ * {@link IOException}.
+ */
+class StateReader {
+
+  private static final MessageSeverity[] SEVERITIES = MessageSeverity.values();
+
+  private final ByteBuffer buf;
+
+  private final String[] strings;
+
+  private final int[] directoryParents;
+
+  private final int[] directoryNames;
+
+  private final String[] directories;
+
+  private final int[] pathParents;
+
+  private final int[] pathNames;
+
+  private final File[] files;
+
+  private final byte segment;
+
+  private final int bodyPosition;
+
+  private final int indexPosition;
+
+  /**
+   * Reads segment that starts at the current position of the state buffer and advances the state
+   * buffer past the segment. Segment checksum is verified before the segment is decoded.
+   */
+  public StateReader(ByteBuffer state) throws IOException {
+    try {
+      if (state.getInt() != StateFormat.MAGIC) {
+        throw new IOException("Not an incremental build state");
+      }
+      long version = readVarint(state);
+      if (version != StateFormat.VERSION) {
+        throw new IOException("Unsupported incremental build state version " + version);
+      }
+      this.segment = state.get();
+      if (segment != StateFormat.SEGMENT_SNAPSHOT && segment != StateFormat.SEGMENT_JOURNAL) {
+        throw new IOException("Unknown incremental build state segment " + segment);
+      }
+      int length = state.getInt();
+      int checksum = state.getInt();
+      if (length < 0 || length > state.remaining()) {
+        throw new IOException("Truncated incremental build state");
+      }
+      this.buf = state.slice();
+      // casts are needed to compile against java 9+ covariant return types and run on java 7
+      ((Buffer) buf).limit(length);
+      ((Buffer) state).position(state.position() + length);
+      if (checksum(buf) != checksum) {
+        throw new IOException("Incremental build state checksum mismatch");
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated incremental build state", e);
+    }
+    try {
+      this.strings = new String[readCount()];
+      for (int i = 0; i < strings.length; i++) {
+        byte[] bytes = new byte[readCount()];
+        buf.get(bytes);
+        strings[i] = new String(bytes, StateFormat.UTF_8);
+      }
+      int directoryCount = readCount();
+      this.directoryParents = new int[directoryCount];
+      this.directoryNames = new int[directoryCount];
+      readPathTable(directoryParents, directoryNames, true);
+      int pathCount = readCount();
+      this.pathParents = new int[pathCount];
+      this.pathNames = new int[pathCount];
+      readPathTable(pathParents, pathNames, false);
+      long indexPosition = readVarint();
+      this.bodyPosition = buf.position();
+      if (indexPosition > buf.limit() - bodyPosition) {
+        throw new IOException("Malformed index position " + indexPosition);
+      }
+      this.indexPosition = (int) indexPosition;
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated incremental build state", e);
+    }
+    this.directories = new String[directoryParents.length];
+    this.files = new File[pathParents.length];
+  }
+
+  private static int checksum(ByteBuffer buf) {
+    // CRC32.update(ByteBuffer) is not available on java 7
+    ByteBuffer data = buf.duplicate();
+    CRC32 crc = new CRC32();
+    byte[] chunk = new byte[Math.min(data.remaining(), 64 * 1024)];
+    while (data.hasRemaining()) {
+      int length = Math.min(data.remaining(), chunk.length);
+      data.get(chunk, 0, length);
+      crc.update(chunk, 0, length);
+    }
+    return (int) crc.getValue();
+  }
+
+  private static long readVarint(ByteBuffer buf) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = buf.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  /**
+   * Returns current position relative to the start of the body.
+   */
+  public int position() {
+    return buf.position() - bodyPosition;
+  }
+
+  /**
+   * Moves to the specified position relative to the start of the body.
+   */
+  public void seek(int position) throws IOException {
+    if (position < 0 || position > buf.limit() - bodyPosition) {
+      throw new IOException("Malformed position " + position);
+    }
+    // cast is needed to compile against java 9+ covariant return types and run on java 7
+    ((Buffer) buf).position(bodyPosition + position);
+  }
+
+  public byte getSegment() {
+    return segment;
+  }
+
+  public int getIndexPosition() {
+    return indexPosition;
+  }
+
+  private void readPathTable(int[] parents, int[] names, boolean directoryTable)
+      throws IOException {
+    for (int i = 0; i < parents.length; i++) {
+      long parent = readVarint() - 1;
+      // directory table is written parents first, so directory references always point backwards
+      long limit = directoryTable ? i : directoryParents.length;
+      if (parent >= limit) {
+        throw new IOException("Malformed directory reference " + parent);
+      }
+      parents[i] = (int) parent;
+      long name = readVarint();
+      if (name >= strings.length) {
+        throw new IOException("Malformed path name reference " + name);
+      }
+      names[i] = (int) name;
+    }
+  }
+
+  public long readVarint() throws IOException {
+    try {
+      return readVarint(buf);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated incremental build state", e);
+    }
+  }
+
+  public long readSignedVarint() throws IOException {
+    long value = readVarint();
+    return (value >>> 1) ^ -(value & 1); // zigzag
+  }
+
+  public int readCount() throws IOException {
+    long count = readVarint();
+    if (count > buf.limit()) {
+      // each element takes at least one byte
+      throw new IOException("Malformed element count " + count);
+    }
+    return (int) count;
+  }
+
+  public byte readByte() throws IOException {
+    try {
+      return buf.get();
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated incremental build state", e);
+    }
+  }
+
+  public String readString() throws IOException {
+    int index = readStringIndex();
+    return index >= 0 ? strings[index] : null;
+  }
+
+  private int readStringIndex() throws IOException {
+    long index = readVarint() - 1;
+    if (index >= strings.length) {
+      throw new IOException("Malformed string reference " + index);
+    }
+    return (int) index;
+  }
+
+  /**
+   * Returns {@code File} instance for the path table reference. The same instance is returned for
+   * all references to the same path, so state maps keyed by the path share single {@code File}
+   * object.
+   */
+  public File readFile() throws IOException {
+    long index = readVarint();
+    if (index >= files.length) {
+      throw new IOException("Malformed path reference " + index);
+    }
+    File file = files[(int) index];
+    if (file == null) {
+      int parent = pathParents[(int) index];
+      String name = strings[pathNames[(int) index]];
+      file = new File(parent >= 0 ? append(getDirectory(parent), name) : name);
+      files[(int) index] = file;
+    }
+    return file;
+  }
+
+  private String getDirectory(int index) {
+    String directory = directories[index];
+    if (directory == null) {
+      int parent = directoryParents[index];
+      String name = strings[directoryNames[index]];
+      directory = parent >= 0 ? append(getDirectory(parent), name) : name;
+      directories[index] = directory;
+    }
+    return directory;
+  }
+
+  private static String append(String directory, String name) {
+    if (directory.endsWith(File.separator)) {
+      return directory + name;
+    }
+    return directory + File.separatorChar + name;
+  }
+
+  public Object readObject() throws IOException {
+    byte tag = readByte();
+    switch (tag) {
+      case StateFormat.TAG_NULL:
+        return null;
+      case StateFormat.TAG_STRING:
+        return readString();
+      case StateFormat.TAG_TRUE:
+        return Boolean.TRUE;
+      case StateFormat.TAG_FALSE:
+        return Boolean.FALSE;
+      case StateFormat.TAG_INTEGER:
+        return Integer.valueOf((int) readSignedVarint());
+      case StateFormat.TAG_LONG:
+        return Long.valueOf(readSignedVarint());
+      case StateFormat.TAG_FILE:
+        return readFile();
+      case StateFormat.TAG_FILESTATE:
+        return readFileState(false);
+      case StateFormat.TAG_HASHED_FILESTATE:
+        return readFileState(true);
+      case StateFormat.TAG_RACY_FILESTATE:
+        Object fileState = readObject();
+        if (!(fileState instanceof FileState) || ((FileState) fileState).racy) {
+          throw new IOException("Malformed racy file state");
+        }
+        return ((FileState) fileState).asRacy();
+      case StateFormat.TAG_MESSAGE:
+        return readMessage();
+      case StateFormat.TAG_BYTES:
+        return readBytes();
+      case StateFormat.TAG_ARRAYLIST:
+        return readCollection(new ArrayList<Object>());
+      case StateFormat.TAG_HASHSET:
+        return readCollection(new HashSet<Object>());
+      case StateFormat.TAG_LINKEDHASHSET:
+        return readCollection(new LinkedHashSet<Object>());
+      case StateFormat.TAG_HASHMAP:
+        return readMap(new HashMap<Object, Object>());
+      case StateFormat.TAG_LINKEDHASHMAP:
+        return readMap(new LinkedHashMap<Object, Object>());
+      case StateFormat.TAG_SERIALIZABLE:
+        return readSerializable();
+      default:
+        throw new IOException("Unknown value tag " + tag);
+    }
+  }
+
+  public <C extends Collection<Object>> C readCollection(C collection) throws IOException {
+    int size = readCount();
+    for (int i = 0; i < size; i++) {
+      collection.add(readObject());
+    }
+    return collection;
+  }
+
+  public <M extends Map<Object, Object>> M readMap(M map) throws IOException {
+    int size = readCount();
+    for (int i = 0; i < size; i++) {
+      Object key = readObject();
+      map.put(key, readObject());
+    }
+    return map;
+  }
+
+  private FileState readFileState(boolean hashed) throws IOException {
+    File file = readFile();
+    long lastModified = readSignedVarint();
+    long length = readSignedVarint();
+    byte[] hash = hashed ? readBytes() : null;
+    return new FileState(file, lastModified, length, hash);
+  }
+
+  private Message readMessage() throws IOException {
+    int line = (int) readSignedVarint();
+    int column = (int) readSignedVarint();
+    String message = readString();
+    int severity = readByte();
+    if (severity < 0 || severity > SEVERITIES.length) {
+      throw new IOException("Malformed message severity " + severity);
+    }
+    Object cause = readObject();
+    if (cause != null && !(cause instanceof Throwable)) {
+      throw new IOException("Malformed message cause " + cause.getClass().getName());
+    }
+    return new Message(line, column, message, severity > 0 ? SEVERITIES[severity - 1] : null,
+        (Throwable) cause);
+  }
+
+  private byte[] readBytes() throws IOException {
+    byte[] bytes = new byte[readCount()];
+    try {
+      buf.get(bytes);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated incremental build state", e);
+    }
+    return bytes;
+  }
+
+  private Object readSerializable() throws IOException {
+    ObjectInputStream is = new ObjectInputStream(new ByteArrayInputStream(readBytes())) {
+      @Override
+      protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+          ClassNotFoundException {
+        // TODO does it matter if TCCL or super is called first?
+        try {
+          ClassLoader tccl = Thread.currentThread().getContextClassLoader();
+          Class<?> clazz = tccl.loadClass(desc.getName());
+          return clazz;
+        } catch (ClassNotFoundException e) {
+          return super.resolveClass(desc);
+        }
+      }
+    };
+    try {
+      return is.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    } finally {
+      is.close();
+    }
+  }
+}
@@ -0,0 +1,328 @@
+package io.takari.incrementalbuild.spi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Encodes incremental build state using {@link StateFormat}. The body is buffered in memory while
+ * string, directory and path tables are collected, all are written out by
+ * {@link #writeTo(OutputStream)}.
+ */
+class StateWriter {
+
+  private static class Buffer extends ByteArrayOutputStream {
+    public Buffer(int size) {
+      super(size);
+    }
+
+    public void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      write((int) value);
+    }
+
+    public void writeInt(int value) {
+      write(value >>> 24);
+      write(value >>> 16);
+      write(value >>> 8);
+      write(value);
+    }
+
+    public void update(CRC32 crc) {
+      crc.update(buf, 0, count);
+    }
+  }
+
+  private final byte segment;
+
+  private final Map<String, Integer> strings = new HashMap<>();
+
+  private final List<String> stringTable = new ArrayList<>();
+
+  private final Map<String, Integer> directories = new HashMap<>();
+
+  /**
+   * Directory table, each directory is encoded as parent directory reference and name string
+   * reference.
+   */
+  private final Buffer directoryTable = new Buffer(4 * 1024);
+
+  private final Map<File, Integer> paths = new HashMap<>();
+
+  /**
+   * Path table, each path is encoded as parent directory reference and name string reference.
+   */
+  private final Buffer pathTable = new Buffer(16 * 1024);
+
+  private final Buffer body = new Buffer(64 * 1024);
+
+  private int indexPosition;
+
+  private int serializableCount;
+
+  public StateWriter() {
+    this(StateFormat.SEGMENT_SNAPSHOT);
+  }
+
+  public StateWriter(byte segment) {
+    this.segment = segment;
+  }
+
+  public void writeVarint(long value) {
+    if (value < 0) {
+      throw new IllegalArgumentException();
+    }
+    body.writeVarint(value);
+  }
+
+  public void writeSignedVarint(long value) {
+    body.writeVarint((value << 1) ^ (value >> 63)); // zigzag
+  }
+
+  /**
+   * Returns current body position, i.e. offset of the next written value from the start of the
+   * body.
+   */
+  public int position() {
+    return body.size();
+  }
+
+  /**
+   * Marks current body position as the start of the record index.
+   */
+  public void startIndex() {
+    indexPosition = body.size();
+  }
+
+  /**
+   * Returns number of values written using java serialization so far.
+   */
+  public int getSerializableCount() {
+    return serializableCount;
+  }
+
+  public void writeByte(int value) {
+    body.write(value);
+  }
+
+  /**
+   * Writes string table reference, {@code 0} is reserved for {@code null} strings.
+   */
+  public void writeString(String string) {
+    body.writeVarint(string != null ? getStringIndex(string) + 1 : 0);
+  }
+
+  private int getStringIndex(String string) {
+    Integer index = strings.get(string);
+    if (index == null) {
+      index = stringTable.size();
+      stringTable.add(string);
+      strings.put(string, index);
+    }
+    return index.intValue();
+  }
+
+  /**
+   * Writes path table reference. Paths are interned in the path table, each path is written as
+   * reference to its parent directory and file name, so common directory prefixes are only
+   * written once.
+   */
+  public void writeFile(File file) {
+    Integer index = paths.get(file);
+    if (index == null) {
+      String path = file.getPath();
+      String parent = file.getParent();
+      int directory = parent != null ? getDirectoryIndex(parent) : -1;
+      pathTable.writeVarint(directory + 1);
+      pathTable.writeVarint(getStringIndex(getName(path, parent)));
+      index = paths.size();
+      paths.put(file, index);
+    }
+    body.writeVarint(index.intValue());
+  }
+
+  private int getDirectoryIndex(String path) {
+    Integer index = directories.get(path);
+    if (index == null) {
+      String parent = new File(path).getParent();
+      int directory = parent != null ? getDirectoryIndex(parent) : -1;
+      directoryTable.writeVarint(directory + 1);
+      directoryTable.writeVarint(getStringIndex(getName(path, parent)));
+      index = directories.size();
+      directories.put(path, index);
+    }
+    return index.intValue();
+  }
+
+  /**
+   * Returns path suffix that follows the parent path. This is not always the same as
+   * {@link File#getName()}, for example, filesystem root "name" is the root path itself.
+   */
+  private static String getName(String path, String parent) {
+    if (parent == null) {
+      return path;
+    }
+    int start = parent.length();
+    if (start < path.length() && path.charAt(start) == File.separatorChar) {
+      start++;
+    }
+    return path.substring(start);
+  }
+
+  public void writeObject(Object value) throws IOException {
+    if (value == null) {
+      writeByte(StateFormat.TAG_NULL);
+      return;
+    }
+    final Class<?> type = value.getClass();
+    if (type == String.class) {
+      writeByte(StateFormat.TAG_STRING);
+      writeString((String) value);
+    } else if (type == Boolean.class) {
+      writeByte(((Boolean) value).booleanValue() ? StateFormat.TAG_TRUE : StateFormat.TAG_FALSE);
+    } else if (type == Integer.class) {
+      writeByte(StateFormat.TAG_INTEGER);
+      writeSignedVarint(((Integer) value).intValue());
+    } else if (type == Long.class) {
+      writeByte(StateFormat.TAG_LONG);
+      writeSignedVarint(((Long) value).longValue());
+    } else if (type == File.class) {
+      writeByte(StateFormat.TAG_FILE);
+      writeFile((File) value);
+    } else if (type == FileState.class) {
+      FileState fileState = (FileState) value;
+      if (fileState.racy) {
+        writeByte(StateFormat.TAG_RACY_FILESTATE);
+      }
+      if (fileState.hash != null) {
+        writeByte(StateFormat.TAG_HASHED_FILESTATE);
+        writeFileState(fileState);
+        writeVarint(fileState.hash.length);
+        body.write(fileState.hash, 0, fileState.hash.length);
+      } else {
+        writeByte(StateFormat.TAG_FILESTATE);
+        writeFileState(fileState);
+      }
+    } else if (type == Message.class) {
+      writeByte(StateFormat.TAG_MESSAGE);
+      writeMessage((Message) value);
+    } else if (type == byte[].class) {
+      byte[] bytes = (byte[]) value;
+      writeByte(StateFormat.TAG_BYTES);
+      writeVarint(bytes.length);
+      body.write(bytes, 0, bytes.length);
+    } else if (type == ArrayList.class) {
+      writeByte(StateFormat.TAG_ARRAYLIST);
+      writeCollection((Collection<?>) value);
+    } else if (type == HashSet.class) {
+      writeByte(StateFormat.TAG_HASHSET);
+      writeCollection((Collection<?>) value);
+    } else if (type == LinkedHashSet.class) {
+      writeByte(StateFormat.TAG_LINKEDHASHSET);
+      writeCollection((Collection<?>) value);
+    } else if (type == HashMap.class) {
+      writeByte(StateFormat.TAG_HASHMAP);
+      writeMap((Map<?, ?>) value);
+    } else if (type == LinkedHashMap.class) {
+      writeByte(StateFormat.TAG_LINKEDHASHMAP);
+      writeMap((Map<?, ?>) value);
+    } else if (value instanceof Serializable) {
+      writeByte(StateFormat.TAG_SERIALIZABLE);
+      writeSerializable((Serializable) value);
+    } else {
+      throw new IllegalArgumentException("Not serializable " + type.getName());
+    }
+  }
+
+  public void writeCollection(Collection<?> collection) throws IOException {
+    if (collection == null || collection.isEmpty()) {
+      writeVarint(0);
+    } else {
+      writeVarint(collection.size());
+      for (Object element : collection) {
+        writeObject(element);
+      }
+    }
+  }
+
+  public void writeMap(Map<?, ?> map) throws IOException {
+    if (map == null || map.isEmpty()) {
+      writeVarint(0);
+    } else {
+      writeVarint(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        writeObject(entry.getKey());
+        writeObject(entry.getValue());
+      }
+    }
+  }
+
+  private void writeFileState(FileState fileState) {
+    writeFile(fileState.file);
+    writeSignedVarint(fileState.lastModified);
+    writeSignedVarint(fileState.length);
+  }
+
+  private void writeMessage(Message message) throws IOException {
+    writeSignedVarint(message.line);
+    writeSignedVarint(message.column);
+    writeString(message.message);
+    writeByte(message.severity != null ? message.severity.ordinal() + 1 : 0);
+    writeObject(message.cause);
+  }
+
+  private void writeSerializable(Serializable value) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(buf)) {
+      oos.writeObject(value);
+    }
+    writeVarint(buf.size());
+    buf.writeTo(body);
+    serializableCount++;
+  }
+
+  public void writeTo(OutputStream os) throws IOException {
+    Buffer tables = new Buffer(16 * 1024);
+    tables.writeVarint(stringTable.size());
+    for (String string : stringTable) {
+      byte[] bytes = string.getBytes(StateFormat.UTF_8);
+      tables.writeVarint(bytes.length);
+      tables.write(bytes, 0, bytes.length);
+    }
+    tables.writeVarint(directories.size());
+    directoryTable.writeTo(tables);
+    tables.writeVarint(paths.size());
+    pathTable.writeTo(tables);
+    tables.writeVarint(indexPosition);
+
+    CRC32 crc = new CRC32();
+    tables.update(crc);
+    body.update(crc);
+
+    Buffer header = new Buffer(16);
+    header.writeInt(StateFormat.MAGIC);
+    header.writeVarint(StateFormat.VERSION);
+    header.write(segment);
+    header.writeInt(tables.size() + body.size());
+    header.writeInt((int) crc.getValue());
+    header.writeTo(os);
+    tables.writeTo(os);
+    body.writeTo(os);
+    os.flush();
+  }
+}
@@ -0,0 +1,79 @@
+package io.takari.incrementalbuild.spi;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.Map;
+
+import io.takari.incrementalbuild.workspace.Workspace;
+
+/**
+ * Filesystem workspace that walks in {@code DELTA} mode, i.e. only visits files changed since the
+ * previous build of the same build context, when the changes are known to {@link FileWatcher}.
+ * Falls back to {@code NORMAL} mode for the first build of the build context in the process and
+ * after watch events were lost.
+ */
+public class WatchingWorkspace extends FilesystemWorkspace {
+
+  private final FileWatcher watcher;
+
+  private final FileWatcher.Build build;
+
+  private final Mode mode;
+
+  public WatchingWorkspace(FileWatcher watcher, File stateFile) {
+    this(watcher, watcher.begin(stateFile));
+  }
+
+  private WatchingWorkspace(FileWatcher watcher, FileWatcher.Build build) {
+    this(watcher, build, build.isDelta() ? Mode.DELTA : Mode.NORMAL);
+  }
+
+  private WatchingWorkspace(FileWatcher watcher, FileWatcher.Build build, Mode mode) {
+    this.watcher = watcher;
+    this.build = build;
+    this.mode = mode;
+  }
+
+  @Override
+  public Mode getMode() {
+    return mode;
+  }
+
+  @Override
+  public Workspace escalate() {
+    if (mode == Mode.NORMAL) {
+      return this;
+    }
+    // keep watching directories walked by escalated build, so the next build can be DELTA
+    return new WatchingWorkspace(watcher, build, Mode.NORMAL);
+  }
+
+  @Override
+  public void walk(File basedir, FileVisitor visitor) throws IOException {
+    if (!basedir.isDirectory()) {
+      return;
+    }
+    Path path = basedir.toPath();
+    watcher.register(build, path);
+    if (mode != Mode.DELTA || !watcher.isCovered(build, path)) {
+      // directory was not walked by the previous build, report all files
+      super.walk(basedir, visitor);
+      return;
+    }
+    for (Map.Entry<Path, WatchEvent.Kind<?>> change : watcher.getChanges(build, path).entrySet()) {
+      File file = change.getKey().toFile();
+      FileAttributes attrs = FileAttributes.read(file);
+      if (attrs != null) {
+        ResourceStatus status =
+            change.getValue() == ENTRY_CREATE ? ResourceStatus.NEW : ResourceStatus.MODIFIED;
+        visitor.visit(file, attrs.lastModified, attrs.length, status);
+      } else if (!file.exists()) {
+        visitor.visit(file, -1, 0, ResourceStatus.REMOVED);
+      }
+    }
+  }
+}
@@ -1,26 +1,27 @@
 package io.takari.incrementalbuild.util;
 
 import io.takari.incrementalbuild.ResourceStatus;
+import io.takari.incrementalbuild.spi.Digests;
 import io.takari.incrementalbuild.spi.ResourceHolder;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 /**
  * Allows tracking of input resources identified by URLs in BuildContext.
  * <p>
- * Resource contents SHA1 is used to determine if the resource has changed compared to the previous
+ * Resource contents digest is used to determine if the resource has changed compared to the previous
  * build.
  * 
  * @experimental this class can be changed or removed without prior notice
  */
 public class URLResourceHolder implements ResourceHolder<URL> {
 
+  private static final long serialVersionUID = 8781272149915835016L;
+
   private final URL url;
 
   private final byte[] hash;
@@ -47,18 +48,13 @@ public class URLResourceHolder implements ResourceHolder<URL> {
   }
 
   private static byte[] hash(URL url) throws IOException {
-    // TODO figure out how to use Guava here
-    MessageDigest digest;
-    try {
-      digest = MessageDigest.getInstance("SHA1");
-    } catch (NoSuchAlgorithmException e) {
-      throw new IOException(e);
-    }
-    InputStream is = new BufferedInputStream(url.openStream());
+    MessageDigest digest = Digests.newInstance();
+    InputStream is = url.openStream();
     try {
-      int ch;
-      while ((ch = is.read()) >= 0) {
-        digest.update((byte) ch);
+      byte[] buf = new byte[8192];
+      int r;
+      while ((r = is.read(buf)) > 0) {
+        digest.update(buf, 0, r);
       }
     } finally {
       is.close();
@@ -1,17 +1,22 @@
 package io.takari.incrementalbuild.maven.internal;
 
+import io.takari.incrementalbuild.ParameterDigester;
 import io.takari.incrementalbuild.maven.internal.digest.MojoConfigurationDigester;
 import io.takari.incrementalbuild.maven.testing.IncrementalBuildRule;
 import io.takari.maven.testing.TestResources;
 
 import java.io.File;
 import java.io.Serializable;
+import java.lang.reflect.Member;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.repository.MavenArtifactRepository;
 import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Model;
 import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.descriptor.MojoDescriptor;
 import org.apache.maven.plugin.descriptor.PluginDescriptor;
@@ -54,6 +59,11 @@ public class MojoConfigurationDigesterTest {
   }
 
   private Map<String, Serializable> digest(Class<?> type, Xpp3Dom... parameters) throws Exception {
+    return digest(type, Collections.<ParameterDigester<?>>emptyList(), parameters);
+  }
+
+  private Map<String, Serializable> digest(Class<?> type, List<ParameterDigester<?>> digesters,
+      Xpp3Dom... parameters) throws Exception {
     PluginDescriptor plugin = new PluginDescriptor();
     plugin.setArtifacts(Collections.<Artifact>emptyList());
     MojoDescriptor mojo = new MojoDescriptor();
@@ -67,7 +77,7 @@ public class MojoConfigurationDigesterTest {
     }
     execution.setConfiguration(configuration);
 
-    return new MojoConfigurationDigester(session, project, execution).digest();
+    return new MojoConfigurationDigester(session, project, execution, digesters).digest();
   }
 
   @Test
@@ -94,6 +104,23 @@ public class MojoConfigurationDigesterTest {
     Assert.assertNotNull(digest.get("mojo.parameter.project"));
   }
 
+  @Test
+  public void testProject_memoized() throws Exception {
+    Serializable digest =
+        digest(newParameter("project", "${project}")).get("mojo.parameter.project");
+    Assert.assertSame(digest,
+        digest(newParameter("project", "${project}")).get("mojo.parameter.project"));
+
+    // replaced model is digested again
+    Model model = project.getModel().clone();
+    model.setDescription("changed");
+    project.setModel(model);
+    Serializable changed =
+        digest(newParameter("project", "${project}")).get("mojo.parameter.project");
+    Assert.assertNotSame(digest, changed);
+    Assert.assertFalse(digest.equals(changed));
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void testUnAnnotatedProject() throws Exception {
     digest(newParameter("unannotatedProject", "${project}"));
@@ -170,4 +197,38 @@ public class MojoConfigurationDigesterTest {
         digest(ExtendedDigestedMojo.class, newParameter("string", "string"));
     Assert.assertEquals("string", digest.get("mojo.parameter.string"));
   }
+
+  private static class TestDigester<T> implements ParameterDigester<T> {
+    private final Class<T> type;
+
+    private final String digest;
+
+    TestDigester(Class<T> type, String digest) {
+      this.type = type;
+      this.digest = digest;
+    }
+
+    @Override
+    public Class<T> getType() {
+      return type;
+    }
+
+    @Override
+    public Serializable digest(Member member, T value) {
+      return digest + value;
+    }
+  }
+
+  @Test
+  public void testCustomDigester() throws Exception {
+    List<ParameterDigester<?>> digesters = new ArrayList<>();
+    digesters.add(new TestDigester<>(Object.class, "object:"));
+    digesters.add(new TestDigester<>(CharSequence.class, "chars:"));
+    digesters.add(new TestDigester<>(Integer.class, "integer:"));
+
+    // most specific custom digester is used
+    Map<String, Serializable> digest =
+        digest(DigestedMojo.class, digesters, newParameter("string", "string"));
+    Assert.assertEquals("chars:string", digest.get("mojo.parameter.string"));
+  }
 }
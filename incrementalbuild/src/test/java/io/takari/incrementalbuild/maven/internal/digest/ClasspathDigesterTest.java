@@ -1,19 +1,49 @@
 package io.takari.incrementalbuild.maven.internal.digest;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.DefaultArtifact;
 import org.apache.maven.artifact.handler.ArtifactHandler;
 import org.apache.maven.artifact.handler.DefaultArtifactHandler;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class ClasspathDigesterTest {
 
+  @Rule
+  public final TemporaryFolder temp = new TemporaryFolder();
+
+  private static Artifact newArtifact(File file) {
+    ArtifactHandler handler = new DefaultArtifactHandler("jar");
+    Artifact a = new DefaultArtifact("g", file.getName(), "1", Artifact.SCOPE_COMPILE, "jar",
+        null, handler);
+    a.setFile(file);
+    return a;
+  }
+
+  private static void writeJar(File file, String... entries) throws IOException {
+    try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+      for (String entry : entries) {
+        zip.putNextEntry(new ZipEntry(entry));
+        zip.write(entry.getBytes("UTF-8"));
+        zip.closeEntry();
+      }
+    }
+    file.setLastModified(System.currentTimeMillis() - 10000);
+  }
+
   @Test
   public void testEntryCache() throws Exception {
     ClasspathDigester digester = new ClasspathDigester(new ConcurrentHashMap<String, byte[]>());
@@ -24,4 +54,94 @@ public class ClasspathDigesterTest {
     Serializable digest = digester.digest(Collections.singletonList(a));
     Assert.assertTrue(digest.equals(cached));
   }
+
+  @Test
+  public void testPersistentCache() throws Exception {
+    File jar = temp.newFile("a.jar");
+    writeJar(jar, "a", "b");
+    File cacheFile = new File(temp.getRoot(), "cache/jars.digest");
+
+    PersistentDigestCache cache = PersistentDigestCache.load(cacheFile);
+    Serializable digest = new ClasspathDigester(new ConcurrentHashMap<String, byte[]>(), cache)
+        .digest(Collections.singletonList(newArtifact(jar)));
+    Assert.assertTrue(cacheFile.isFile());
+
+    // digest is reused by new sessions
+    cache = PersistentDigestCache.load(cacheFile);
+    Assert.assertNotNull(cache.get(PersistentDigestCache.Key.of(jar)));
+    Assert.assertEquals(digest, new ClasspathDigester(new ConcurrentHashMap<String, byte[]>(),
+        cache).digest(Collections.singletonList(newArtifact(jar))));
+
+    // modified jar is digested again
+    writeJar(jar, "a", "b", "c");
+    cache = PersistentDigestCache.load(cacheFile);
+    Assert.assertNull(cache.get(PersistentDigestCache.Key.of(jar)));
+    Serializable modified = new ClasspathDigester(new ConcurrentHashMap<String, byte[]>(), cache)
+        .digest(Collections.singletonList(newArtifact(jar)));
+    Assert.assertFalse(digest.equals(modified));
+    Assert.assertNotNull(PersistentDigestCache.load(cacheFile).get(
+        PersistentDigestCache.Key.of(jar)));
+  }
+
+  @Test
+  public void testPersistentCache_corrupted() throws Exception {
+    File jar = temp.newFile("a.jar");
+    writeJar(jar, "a");
+    File cacheFile = temp.newFile("jars.digest");
+    try (FileOutputStream os = new FileOutputStream(cacheFile)) {
+      os.write(new byte[] {0, 0, 0, 1, 0, 0, 0, 5, 1});
+    }
+
+    PersistentDigestCache cache = PersistentDigestCache.load(cacheFile);
+    Assert.assertNull(cache.get(PersistentDigestCache.Key.of(jar)));
+    new ClasspathDigester(new ConcurrentHashMap<String, byte[]>(), cache)
+        .digest(Collections.singletonList(newArtifact(jar)));
+    Assert.assertNotNull(PersistentDigestCache.load(cacheFile).get(
+        PersistentDigestCache.Key.of(jar)));
+  }
+
+  @Test
+  public void testJarDigest() throws Exception {
+    File a = temp.newFile("a.jar");
+    writeJar(a, "x", "y/z");
+    File b = temp.newFile("b.jar");
+    writeJar(b, "y/z", "x");
+    File c = temp.newFile("c.jar");
+    try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(c))) {
+      zip.putNextEntry(new ZipEntry("x"));
+      zip.write("X".getBytes("UTF-8"));
+      zip.putNextEntry(new ZipEntry("y/z"));
+      zip.write("y/z".getBytes("UTF-8"));
+    }
+
+    ClasspathDigester digester = new ClasspathDigester(new ConcurrentHashMap<String, byte[]>());
+    Serializable digestA = digester.digest(Collections.singletonList(newArtifact(a)));
+    Serializable digestB = digester.digest(Collections.singletonList(newArtifact(b)));
+    Serializable digestC = digester.digest(Collections.singletonList(newArtifact(c)));
+
+    // entry order and timestamps are ignored, entry contents are not
+    Assert.assertEquals(digestA, digestB);
+    Assert.assertFalse(digestA.equals(digestC));
+  }
+
+  @Test
+  public void testArtifactOrder() throws Exception {
+    List<Artifact> artifacts = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      File jar = temp.newFile(i + ".jar");
+      writeJar(jar, "entry" + i);
+      artifacts.add(newArtifact(jar));
+    }
+    artifacts.add(newArtifact(new File("src/test/projects/digester")));
+    artifacts.add(newArtifact(new File(temp.getRoot(), "missing.jar")));
+
+    Serializable digest =
+        new ClasspathDigester(new ConcurrentHashMap<String, byte[]>()).digest(artifacts);
+    Assert.assertEquals(digest,
+        new ClasspathDigester(new ConcurrentHashMap<String, byte[]>()).digest(artifacts));
+
+    Collections.reverse(artifacts);
+    Assert.assertFalse(digest.equals(
+        new ClasspathDigester(new ConcurrentHashMap<String, byte[]>()).digest(artifacts)));
+  }
 }
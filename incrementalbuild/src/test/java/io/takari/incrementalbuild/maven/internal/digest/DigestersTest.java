@@ -0,0 +1,93 @@
+package io.takari.incrementalbuild.maven.internal.digest;
+
+import io.takari.incrementalbuild.Incremental;
+import io.takari.incrementalbuild.ParameterDigester;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.reflect.Member;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.model.Model;
+import org.apache.maven.project.MavenProject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DigestersTest {
+
+  @SuppressWarnings("unused")
+  private Object parameter;
+
+  @Incremental
+  @SuppressWarnings("unused")
+  private MavenProject project;
+
+  private static Serializable digest(Object value) throws Exception {
+    Member member = DigestersTest.class.getDeclaredField("parameter");
+    return new Digesters(Collections.<ParameterDigester<?>>emptyList()).digest(member, value);
+  }
+
+  @Test
+  public void testCollection() throws Exception {
+    Serializable digest = digest(Arrays.asList("a", "b"));
+    Assert.assertTrue(digest instanceof BytesHash);
+    Assert.assertEquals(digest, digest(Arrays.asList("a", "b")));
+    Assert.assertFalse(digest.equals(digest(Arrays.asList("b", "a"))));
+    Assert.assertFalse(digest.equals(digest(Arrays.asList("ab"))));
+    Assert.assertFalse(digest.equals(digest(Arrays.asList("a", "b", null))));
+
+    List<File> files = Arrays.asList(new File("a"), new File("b"));
+    Assert.assertEquals(digest(files), digest(Arrays.asList(new File("a"), new File("b"))));
+    Assert.assertFalse(digest(files).equals(digest(Arrays.asList(new File("a")))));
+
+    Assert.assertEquals(digest(Arrays.asList(1, 2)), digest(Arrays.asList(1, 2)));
+    Assert.assertFalse(digest(Arrays.asList(1, 2)).equals(digest(Arrays.asList(1, 3))));
+  }
+
+  @Test
+  public void testNestedCollection() throws Exception {
+    Serializable digest = digest(Arrays.asList(Arrays.asList("a"), Arrays.asList("b")));
+    Assert.assertEquals(digest, digest(Arrays.asList(Arrays.asList("a"), Arrays.asList("b"))));
+    Assert.assertFalse(digest.equals(digest(Arrays.asList(Arrays.asList("a", "b")))));
+  }
+
+  @Test
+  public void testMap() throws Exception {
+    Map<String, String> a = new LinkedHashMap<>();
+    a.put("1", "a");
+    a.put("2", "b");
+    Map<String, String> b = new LinkedHashMap<>();
+    b.put("2", "b");
+    b.put("1", "a");
+    Map<String, String> c = new HashMap<>(a);
+    c.put("1", "b");
+
+    Serializable digest = digest(a);
+    Assert.assertTrue(digest instanceof BytesHash);
+    Assert.assertEquals(digest, digest(b));
+    Assert.assertFalse(digest.equals(digest(c)));
+  }
+
+  @Test
+  public void testMavenProject_propertiesChangedInPlace() throws Exception {
+    Member member = DigestersTest.class.getDeclaredField("project");
+    Digesters digesters = new Digesters(Collections.<ParameterDigester<?>>emptyList());
+    Model model = new Model();
+    model.setArtifactId("test");
+    MavenProject project = new MavenProject(model);
+
+    Serializable digest = digesters.digest(member, project);
+    Assert.assertEquals(digest, digesters.digest(member, project));
+
+    // mojos like buildnumber set project properties in place
+    model.getProperties().setProperty("buildNumber", "1");
+    Serializable changed = digesters.digest(member, project);
+    Assert.assertFalse(digest.equals(changed));
+    Assert.assertEquals(changed, digesters.digest(member, project));
+  }
+}
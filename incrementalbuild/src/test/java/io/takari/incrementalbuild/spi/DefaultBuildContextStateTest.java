@@ -1,11 +1,21 @@
 package io.takari.incrementalbuild.spi;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.Rule;
@@ -15,6 +25,8 @@ import org.junit.rules.TemporaryFolder;
 import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 
+import io.takari.incrementalbuild.MessageSeverity;
+
 public class DefaultBuildContextStateTest {
   @Rule
   public final TemporaryFolder temp = new TemporaryFolder();
@@ -36,6 +48,189 @@ public class DefaultBuildContextStateTest {
     Assert.assertNotNull(state.getResource(file));
   }
 
+  @Test
+  public void testRoundtrip_attributesAndMessages() throws Exception {
+    File input = temp.newFile();
+    File output = temp.newFile();
+    HashMap<String, Serializable> configuration = new HashMap<String, Serializable>();
+    configuration.put("files", new ArrayList<>(Arrays.asList(input, output)));
+    configuration.put("url", new URL("file:///"));
+    DefaultBuildContextState state = DefaultBuildContextState.withConfiguration(configuration);
+    state.putResource(input, new FileState(input, input.lastModified(), input.length()));
+    state.putResource(output, new FileState(output, output.lastModified(), output.length()));
+    state.addOutput(output);
+    state.putResourceOutput(input, output);
+    state.putResourceAttribute(input, "string", "value");
+    state.putResourceAttribute(input, "long", Long.MIN_VALUE);
+    state.putResourceAttribute(input, "map", new HashMap<>(Collections.singletonMap("k", 1)));
+    state.addResourceMessage(input, new Message(1, 2, "message", MessageSeverity.WARNING, null));
+    state.addResourceMessage(input, new Message(3, 4, null, MessageSeverity.ERROR,
+        new IllegalArgumentException()));
+
+    File stateFile = temp.newFile();
+    try (OutputStream os = new FileOutputStream(stateFile)) {
+      state.storeTo(os);
+    }
+
+    DefaultBuildContextState loaded = DefaultBuildContextState.loadFrom(stateFile);
+
+    Assert.assertEquals(state.configuration, loaded.configuration);
+    Assert.assertEquals(state.getResources(), loaded.getResources());
+    Assert.assertEquals(Collections.singleton(output), new HashSet<>(loaded.getOutputs()));
+    Assert.assertEquals(Collections.singletonList(input), loaded.getOutputInputs(output));
+    Assert.assertEquals(state.getResourceAttributes(input), loaded.getResourceAttributes(input));
+    List<Message> messages = new ArrayList<>(loaded.getResourceMessages(input));
+    Assert.assertEquals(2, messages.size());
+    Assert.assertEquals(new Message(1, 2, "message", MessageSeverity.WARNING, null),
+        messages.get(0));
+    Assert.assertNull(messages.get(1).message);
+    Assert.assertTrue(messages.get(1).cause instanceof IllegalArgumentException);
+  }
+
+  @Test
+  public void testRoundtrip_paths() throws Exception {
+    File input = temp.newFile().getCanonicalFile();
+    File output = new File(input.getParentFile(), "output");
+    File root = input.toPath().getRoot().toFile();
+    File relative = new File("relative/path");
+    DefaultBuildContextState state =
+        DefaultBuildContextState.withConfiguration(new HashMap<String, Serializable>());
+    state.putResource(input, new FileState(input, 1, 2));
+    state.putResourceOutput(input, output);
+    state.putResourceAttribute(input, "root", root);
+    state.putResourceAttribute(input, "relative", relative);
+
+    File stateFile = temp.newFile();
+    try (OutputStream os = new FileOutputStream(stateFile)) {
+      state.storeTo(os);
+    }
+
+    DefaultBuildContextState loaded = DefaultBuildContextState.loadFrom(stateFile);
+
+    Assert.assertEquals(root, loaded.getResourceAttribute(input, "root"));
+    Assert.assertEquals(relative, loaded.getResourceAttribute(input, "relative"));
+    Assert.assertEquals(Collections.singletonList(output),
+        new ArrayList<>(loaded.getResourceOutputs(input)));
+
+    // all maps share the same File instance
+    Object key = loaded.getResources().keySet().iterator().next();
+    Assert.assertSame(key, ((FileState) loaded.getResource(input)).file);
+    Assert.assertSame(key, loaded.getOutputInputs(output).iterator().next());
+  }
+
+  @Test
+  public void testOutputInputs_lazy() throws Exception {
+    File a = temp.newFile();
+    File b = temp.newFile();
+    File output = temp.newFile();
+    DefaultBuildContextState state =
+        DefaultBuildContextState.withConfiguration(new HashMap<String, Serializable>());
+    state.putResource(a, new FileState(a, 1, 1));
+    state.putResource(b, new FileState(b, 1, 1));
+    state.putResourceOutput(b, output);
+    state.addOutput(output);
+
+    File stateFile = temp.newFile();
+    try (OutputStream os = new FileOutputStream(stateFile)) {
+      state.storeTo(os);
+    }
+
+    MappedBuildContextState loaded = (MappedBuildContextState) DefaultBuildContextState
+        .loadFrom(stateFile);
+    Assert.assertEquals(Collections.singletonList(b),
+        new ArrayList<>(loaded.getOutputInputs(output)));
+    Assert.assertTrue(loaded.isDecoded(b));
+    Assert.assertFalse(loaded.isDecoded(a));
+  }
+
+  @Test
+  public void testSnapshots() throws Exception {
+    File input = temp.newFile();
+    File output = temp.newFile();
+    DefaultBuildContextState state =
+        DefaultBuildContextState.withConfiguration(new HashMap<String, Serializable>());
+    state.putResource(input, new FileState(input, input.lastModified(), input.length()));
+    state.putResource(output, null); // placeholder
+    state.addResourceMessage(input, new Message(0, 0, "a", MessageSeverity.INFO, null));
+
+    Map<Object, ResourceHolder<?>> resources = state.getResources();
+    Map<Object, Collection<Message>> messages = state.getResourceMessages();
+    Collection<Message> inputMessages = state.getResourceMessages(input);
+    Assert.assertTrue(state.isResource(output));
+    Assert.assertNull(state.getResource(output));
+    Assert.assertNull(resources.get(output));
+
+    // accessors return snapshots and published values are not modified
+    state.removeResource(output);
+    state.addResourceMessage(input, new Message(0, 0, "b", MessageSeverity.INFO, null));
+    Assert.assertEquals(2, resources.size());
+    Assert.assertEquals(1, messages.get(input).size());
+    Assert.assertEquals(1, inputMessages.size());
+    Assert.assertEquals(2, state.getResourceMessages(input).size());
+  }
+
+  @Test
+  public void testJournal() throws Exception {
+    File a = temp.newFile();
+    File b = temp.newFile();
+    File c = temp.newFile();
+    File output = temp.newFile();
+    DefaultBuildContextState state =
+        DefaultBuildContextState.withConfiguration(new HashMap<String, Serializable>());
+    state.putResource(a, new FileState(a, 1, 1));
+    state.putResourceAttribute(a, "key", "value");
+    state.putResource(b, new FileState(b, 1, 1));
+
+    File stateFile = temp.newFile();
+    try (OutputStream os = new FileOutputStream(stateFile)) {
+      state.storeTo(os);
+    }
+    DefaultBuildContextState oldState = DefaultBuildContextState.loadFrom(stateFile);
+    Assert.assertEquals(0, oldState.getJournalSize());
+
+    // no changes, nothing is written
+    Assert.assertFalse(state.storeJournalTo(new ByteArrayOutputStream(), oldState));
+
+    // a changed, b removed, c added
+    state = DefaultBuildContextState.withConfiguration(new HashMap<String, Serializable>());
+    state.putResource(a, new FileState(a, 2, 1));
+    state.putResourceAttribute(a, "key", "value");
+    state.putResource(c, new FileState(c, 1, 1));
+    state.putResourceOutput(c, output);
+    state.addOutput(output);
+    try (OutputStream os = new FileOutputStream(stateFile, true)) {
+      Assert.assertTrue(state.storeJournalTo(os, oldState));
+    }
+
+    DefaultBuildContextState loaded = DefaultBuildContextState.loadFrom(stateFile);
+    Assert.assertTrue(loaded.getJournalSize() > 0);
+    Assert.assertEquals(new FileState(a, 2, 1), loaded.getResource(a));
+    Assert.assertEquals("value", loaded.getResourceAttribute(a, "key"));
+    Assert.assertFalse(loaded.isResource(b));
+    Assert.assertNull(loaded.getResource(b));
+    Assert.assertEquals(new FileState(c, 1, 1), loaded.getResource(c));
+    Assert.assertEquals(Collections.singletonList(output),
+        new ArrayList<>(loaded.getResourceOutputs(c)));
+    Assert.assertEquals(Collections.singletonList(c),
+        new ArrayList<>(loaded.getOutputInputs(output)));
+    Assert.assertTrue(loaded.isOutput(output));
+    Assert.assertEquals(new HashSet<>(Arrays.asList(a, c)), loaded.getResources().keySet());
+
+    // output removed on top of the journal
+    state = DefaultBuildContextState.withConfiguration(new HashMap<String, Serializable>());
+    state.putResource(a, new FileState(a, 2, 1));
+    state.putResourceAttribute(a, "key", "value");
+    state.putResource(c, new FileState(c, 1, 1));
+    try (OutputStream os = new FileOutputStream(stateFile, true)) {
+      Assert.assertTrue(state.storeJournalTo(os, loaded));
+    }
+
+    loaded = DefaultBuildContextState.loadFrom(stateFile);
+    Assert.assertFalse(loaded.isOutput(output));
+    Assert.assertNull(loaded.getResourceOutputs(c));
+    Assert.assertNull(loaded.getOutputInputs(output));
+  }
+
   @Test
   public void testStateDoesNotExist() throws Exception {
     DefaultBuildContextState state =
@@ -55,6 +250,55 @@ public class DefaultBuildContextStateTest {
     Assert.assertTrue(DefaultBuildContextState.loadFrom(corrupted).configuration.isEmpty());
   }
 
+  @Test
+  public void testChecksumMismatch() throws Exception {
+    File file = temp.newFile();
+    DefaultBuildContextState state =
+        DefaultBuildContextState.withConfiguration(new HashMap<String, Serializable>());
+    state.putResource(file, new FileState(file, 1, 2));
+    File stateFile = new File(temp.getRoot(), "state");
+    state.storeTo(stateFile);
+    Assert.assertEquals(new HashSet<>(Arrays.asList(file.getName(), "state")),
+        new HashSet<>(Arrays.asList(temp.getRoot().list())));
+
+    try (RandomAccessFile raf = new RandomAccessFile(stateFile, "rw")) {
+      raf.seek(raf.length() - 1);
+      int b = raf.read();
+      raf.seek(raf.length() - 1);
+      raf.write(b ^ 0xFF);
+    }
+
+    Assert.assertTrue(DefaultBuildContextState.loadFrom(stateFile).configuration.isEmpty());
+  }
+
+  @Test
+  public void testIncompleteJournal() throws Exception {
+    File a = temp.newFile();
+    File b = temp.newFile();
+    DefaultBuildContextState state =
+        DefaultBuildContextState.withConfiguration(new HashMap<String, Serializable>());
+    state.putResource(a, new FileState(a, 1, 1));
+    File stateFile = new File(temp.getRoot(), "state");
+    state.storeTo(stateFile);
+    DefaultBuildContextState oldState = DefaultBuildContextState.loadFrom(stateFile);
+
+    state = DefaultBuildContextState.withConfiguration(new HashMap<String, Serializable>());
+    state.putResource(a, new FileState(a, 1, 1));
+    state.putResource(b, new FileState(b, 1, 1));
+    ByteArrayOutputStream journal = new ByteArrayOutputStream();
+    Assert.assertTrue(state.storeJournalTo(journal, oldState));
+    try (OutputStream os = new FileOutputStream(stateFile, true)) {
+      os.write(journal.toByteArray(), 0, journal.size() - 1);
+    }
+
+    // last complete state is used, but the journal must be rewritten
+    DefaultBuildContextState loaded = DefaultBuildContextState.loadFrom(stateFile);
+    Assert.assertFalse(loaded.configuration.isEmpty());
+    Assert.assertEquals(new FileState(a, 1, 1), loaded.getResource(a));
+    Assert.assertFalse(loaded.isResource(b));
+    Assert.assertEquals(-1, loaded.getJournalSize());
+  }
+
   @Test
   public void testIncompatibleState() throws Exception {
     File incompatible = temp.newFile();
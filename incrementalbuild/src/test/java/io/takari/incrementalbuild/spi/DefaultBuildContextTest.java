@@ -4,8 +4,10 @@ import static io.takari.incrementalbuild.ResourceStatus.MODIFIED;
 import static io.takari.incrementalbuild.ResourceStatus.NEW;
 import static io.takari.incrementalbuild.ResourceStatus.UNMODIFIED;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -17,6 +19,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -24,8 +31,12 @@ import org.junit.Test;
 import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 
+import io.takari.incrementalbuild.InputProcessor;
+import io.takari.incrementalbuild.MessageSeverity;
+import io.takari.incrementalbuild.Resource;
 import io.takari.incrementalbuild.ResourceMetadata;
 import io.takari.incrementalbuild.ResourceStatus;
+import io.takari.incrementalbuild.workspace.Workspace;
 
 public class DefaultBuildContextTest extends AbstractBuildContextTest {
 
@@ -96,6 +107,23 @@ public class DefaultBuildContextTest extends AbstractBuildContextTest {
     Assert.assertEquals(MODIFIED, context.registerInput(inputFile).getStatus());
   }
 
+  @Test
+  public void testNormalize_symlinks() throws Exception {
+    File real = temp.newFolder("real").getCanonicalFile();
+    File file = new File(real, "file");
+    file.createNewFile();
+    File link = new File(temp.getRoot(), "link");
+    java.nio.file.Files.createSymbolicLink(link.toPath(), real.toPath());
+    File fileLink = new File(real, "fileLink");
+    java.nio.file.Files.createSymbolicLink(fileLink.toPath(), file.toPath());
+
+    TestBuildContext context = newBuildContext();
+    Assert.assertEquals(file, context.registerInput(new File(link, "file")).getResource());
+    Assert.assertEquals(file, context.registerInput(new File(real, "../link/file")).getResource());
+    Assert.assertEquals(file, context.registerInput(fileLink).getResource());
+    Assert.assertEquals(file, context.registerInput(new File(real, "file")).getResource());
+  }
+
   @Test(expected = IllegalStateException.class)
   public void testInputModifiedAfterRegistration() throws Exception {
     File inputFile = temp.newFile("inputFile");
@@ -117,6 +145,34 @@ public class DefaultBuildContextTest extends AbstractBuildContextTest {
     Assert.assertTrue(outputFile.canRead());
   }
 
+  @Test(expected = IllegalStateException.class)
+  public void testInputModifiedAfterRegistration_manyInputs() throws Exception {
+    File basedir = temp.newFolder("basedir");
+    for (int i = 0; i < 2000; i++) {
+      temp.newFile("basedir/" + i);
+    }
+
+    TestBuildContext context = newBuildContext();
+    Assert.assertEquals(2000, context.registerAndProcessInputs(basedir, null, null).size());
+    Files.append("test", new File(basedir, "1234"), Charsets.UTF_8);
+    context.commit();
+  }
+
+  @Test
+  public void testInputModifiedAfterRegistration_checkDisabled() throws Exception {
+    File inputFile = temp.newFile("inputFile");
+
+    System.setProperty(AbstractBuildContext.PROP_INPUT_CHECK, "0");
+    try {
+      TestBuildContext context = newBuildContext();
+      context.registerInput(inputFile).process();
+      Files.append("test", inputFile, Charsets.UTF_8);
+      context.commit();
+    } finally {
+      System.clearProperty(AbstractBuildContext.PROP_INPUT_CHECK);
+    }
+  }
+
   @Test
   public void testCommit_orphanedOutputsCleanup() throws Exception {
     File inputFile = temp.newFile("inputFile");
@@ -338,6 +394,210 @@ public class DefaultBuildContextTest extends AbstractBuildContextTest {
     context.commit();
   }
 
+  @Test
+  public void testStateFile_workspace() throws Exception {
+    File inputFile = temp.newFile("inputFile");
+    File stateFile = new File(temp.getRoot(), "buildstate.ctx");
+
+    // state files not written directly to the filesystem are written through the workspace
+    final List<File> written = new ArrayList<>();
+    Workspace workspace = new FilesystemWorkspace() {
+      @Override
+      public OutputStream newOutputStream(File file) throws IOException {
+        written.add(file);
+        return super.newOutputStream(file);
+      }
+
+      @Override
+      public boolean isFilesystem(File file) {
+        return false;
+      }
+    };
+    TestBuildContext context = newBuildContext(workspace);
+    context.registerInput(inputFile).process();
+    context.commit();
+    Assert.assertEquals(Arrays.asList(stateFile), written);
+
+    context = newBuildContext();
+    Assert.assertEquals(UNMODIFIED, context.registerInput(inputFile).getStatus());
+  }
+
+  @Test
+  public void testStateJournal() throws Exception {
+    File inputFile = temp.newFile("inputFile");
+    File stateFile = new File(temp.getRoot(), "buildstate.ctx");
+
+    System.setProperty(AbstractBuildContext.PROP_STATE_JOURNAL_SIZE, "1024");
+    try {
+      TestBuildContext context = newBuildContext();
+      context.setAttribute(context.registerInput(inputFile).process(), "key", "value");
+      context.commit();
+      long snapshotSize = stateFile.length();
+
+      // no changes, the state file is not modified
+      context = newBuildContext();
+      context.registerInput(inputFile);
+      context.commit();
+      Assert.assertEquals(snapshotSize, stateFile.length());
+
+      // changes are appended to the journal in place
+      final List<File> written = new ArrayList<>();
+      Files.append("changed", inputFile, Charsets.UTF_8);
+      context = newBuildContext(new FilesystemWorkspace() {
+        @Override
+        public OutputStream newOutputStream(File file) throws IOException {
+          written.add(file);
+          return super.newOutputStream(file);
+        }
+      });
+      context.setAttribute(context.registerInput(inputFile).process(), "key", "changed");
+      context.commit();
+      long journalSize = stateFile.length();
+      Assert.assertTrue(journalSize > snapshotSize);
+      Assert.assertEquals(Collections.emptyList(), written);
+
+      // or through workspaces that are not the filesystem
+      Files.append("changed", inputFile, Charsets.UTF_8);
+      context = newBuildContext(new FilesystemWorkspace() {
+        @Override
+        public OutputStream newOutputStream(File file) throws IOException {
+          written.add(file);
+          return super.newOutputStream(file);
+        }
+
+        @Override
+        public boolean isFilesystem(File file) {
+          return false;
+        }
+      });
+      context.setAttribute(context.registerInput(inputFile).process(), "key", "changed again");
+      context.commit();
+      Assert.assertTrue(stateFile.length() > journalSize);
+      Assert.assertEquals(Arrays.asList(stateFile), written);
+
+      context = newBuildContext();
+      Assert.assertEquals(UNMODIFIED, context.registerInput(inputFile).getStatus());
+      Assert.assertEquals("changed again",
+          context.getAttribute(context.registerInput(inputFile), "key", String.class));
+      context.commit();
+    } finally {
+      System.clearProperty(AbstractBuildContext.PROP_STATE_JOURNAL_SIZE);
+    }
+
+    // journal disabled, the complete state is written
+    TestBuildContext context = newBuildContext();
+    Files.append("changed", inputFile, Charsets.UTF_8);
+    context.registerInput(inputFile).process();
+    context.commit();
+    Assert.assertEquals(0, DefaultBuildContextState.loadFrom(stateFile).getJournalSize());
+  }
+
+  @Test
+  public void testContentHash() throws Exception {
+    File inputFile = temp.newFile("inputFile");
+    Files.write("content", inputFile, Charsets.UTF_8);
+    long lastModified = inputFile.lastModified();
+
+    System.setProperty(AbstractBuildContext.PROP_CONTENT_HASH, "true");
+    try {
+      TestBuildContext context = newBuildContext();
+      context.registerInput(inputFile).process();
+      context.commit();
+
+      // racily clean input contents is compared
+      context = newBuildContext();
+      Assert.assertEquals(UNMODIFIED, context.registerInput(inputFile).getStatus());
+      context.commit();
+
+      // same contents, different timestamp
+      Assert.assertTrue(inputFile.setLastModified(lastModified + 10000));
+      context = newBuildContext();
+      Assert.assertEquals(UNMODIFIED, context.registerInput(inputFile).getStatus());
+      context.commit();
+
+      // new timestamp is written back
+      FileState fileState = (FileState) DefaultBuildContextState.loadFrom(
+          new File(temp.getRoot(), "buildstate.ctx")).getResource(inputFile.getCanonicalFile());
+      Assert.assertEquals(lastModified + 10000, fileState.lastModified);
+      Assert.assertNotNull(fileState.hash);
+
+      // different contents, same length
+      Files.write("CONTENT", inputFile, Charsets.UTF_8);
+      Assert.assertTrue(inputFile.setLastModified(lastModified + 20000));
+      context = newBuildContext();
+      Assert.assertEquals(MODIFIED, context.registerInput(inputFile).getStatus());
+      context.commit();
+    } finally {
+      System.clearProperty(AbstractBuildContext.PROP_CONTENT_HASH);
+    }
+
+    // disabled, timestamp change is a modification
+    Assert.assertTrue(inputFile.setLastModified(lastModified + 30000));
+    TestBuildContext context = newBuildContext();
+    Assert.assertEquals(MODIFIED, context.registerInput(inputFile).getStatus());
+    context.commit();
+  }
+
+  @Test
+  public void testTimestampResolution() throws Exception {
+    File inputFile = temp.newFile("inputFile").getCanonicalFile();
+    Files.write("content", inputFile, Charsets.UTF_8);
+    long lastModified = System.currentTimeMillis() / 1000 * 1000 - 10000;
+    Assert.assertTrue(inputFile.setLastModified(lastModified + 123));
+    if (inputFile.lastModified() != lastModified + 123) {
+      return; // filesystem does not support sub-second timestamps
+    }
+
+    // workspace reported timestamp with second resolution
+    TestBuildContext context = newBuildContext();
+    context.registerNormalizedInput(inputFile, lastModified, inputFile.length()).process();
+    context.commit();
+
+    context = newBuildContext();
+    Assert.assertEquals(UNMODIFIED, context.registerInput(inputFile).getStatus());
+    context.commit();
+
+    // timestamps with sub-second resolution are compared exactly
+    Assert.assertTrue(inputFile.setLastModified(lastModified + 456));
+    context = newBuildContext();
+    Assert.assertEquals(MODIFIED, context.registerInput(inputFile).getStatus());
+    context.commit();
+  }
+
+  @Test
+  public void testRacyTimestamps() throws Exception {
+    File inputFile = temp.newFile("inputFile");
+    Files.write("content", inputFile, Charsets.UTF_8);
+    long lastModified = inputFile.lastModified();
+
+    System.setProperty(AbstractBuildContext.PROP_RACY_TIMESTAMPS, "true");
+    try {
+      TestBuildContext context = newBuildContext();
+      context.registerInput(inputFile).process();
+      context.commit();
+
+      // modified within timestamp granularity, same timestamp and length
+      Files.write("CONTENT", inputFile, Charsets.UTF_8);
+      Assert.assertTrue(inputFile.setLastModified(lastModified));
+      context = newBuildContext();
+      Assert.assertFalse(context.isEscalated());
+      Assert.assertEquals(MODIFIED, context.registerInput(inputFile).getStatus());
+      context.registerInput(inputFile).process();
+      context.commit();
+
+      // no longer racy
+      Assert.assertTrue(inputFile.setLastModified(lastModified - 10000));
+      context = newBuildContext();
+      context.registerInput(inputFile).process();
+      context.commit();
+      context = newBuildContext();
+      Assert.assertEquals(UNMODIFIED, context.registerInput(inputFile).getStatus());
+      context.commit();
+    } finally {
+      System.clearProperty(AbstractBuildContext.PROP_RACY_TIMESTAMPS);
+    }
+  }
+
   @Test
   public void testStateSerialization_useTCCL() throws Exception {
     File inputFile = temp.newFile("inputFile");
@@ -561,4 +821,239 @@ public class DefaultBuildContextTest extends AbstractBuildContextTest {
     context = newBuildContext();
     Assert.assertTrue(context.isEscalated());
   }
+
+  @Test
+  public void testDeletedOutput_registeredInput() throws Exception {
+    File inputFile = temp.newFile("inputFile");
+    File outputFile = temp.newFile("outputFile");
+    TestBuildContext context = newBuildContext();
+    context.registerInput(inputFile).process().associateOutput(outputFile);
+    context.commit();
+
+    // inputs are registered while old outputs are checked in the background
+    Assert.assertTrue(outputFile.delete());
+    context = newBuildContext();
+    Assert.assertEquals(MODIFIED, context.registerInput(inputFile).getStatus());
+    Assert.assertTrue(context.isEscalated());
+  }
+
+  @Test
+  public void testDeletedOutput_registerAndProcessInputs() throws Exception {
+    File basedir = temp.newFolder("basedir");
+    File outputdir = temp.newFolder("outputdir");
+    temp.newFile("basedir/a");
+    temp.newFile("basedir/b");
+    TestBuildContext context = newBuildContext();
+    for (DefaultResource<File> input : context.registerAndProcessInputs(basedir, null, null)) {
+      File outputFile = new File(outputdir, input.getResource().getName());
+      input.associateOutput(outputFile).newOutputStream().close();
+    }
+    context.commit();
+
+    // unmodified inputs are processed once the presence check of old outputs escalates the build
+    Assert.assertTrue(new File(outputdir, "a").delete());
+    context = newBuildContext();
+    Assert.assertEquals(2, context.registerAndProcessInputs(basedir, null, null).size());
+    Assert.assertTrue(context.isEscalated());
+  }
+
+  @Test
+  public void testDeletedOutput_manyOutputs() throws Exception {
+    temp.newFolder("outputs");
+    TestBuildContext context = newBuildContext();
+    for (int i = 0; i < 2000; i++) {
+      context.processOutput(temp.newFile("outputs/" + i));
+    }
+    context.commit();
+
+    Assert.assertFalse(newBuildContext().isEscalated());
+
+    // output replaced with a directory
+    File outputFile = new File(temp.getRoot(), "outputs/1234");
+    Assert.assertTrue(outputFile.delete() && outputFile.mkdir());
+    context = newBuildContext();
+    Assert.assertTrue(context.isEscalated());
+  }
+
+  @Test
+  public void testConcurrentProcessing() throws Exception {
+    File basedir = temp.newFolder("basedir");
+    final File outputdir = temp.newFolder("outputdir");
+    for (int i = 0; i < 1000; i++) {
+      temp.newFile("basedir/" + i);
+    }
+
+    TestBuildContext context = newBuildContext();
+    List<Future<?>> futures = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      for (final DefaultResource<File> input : context.registerAndProcessInputs(basedir, null,
+          null)) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            String name = input.getResource().getName();
+            input.associateOutput(new File(outputdir, name + ".out")).newOutputStream().close();
+            input.associateOutput(new File(outputdir, name + ".out2")).newOutputStream().close();
+            input.addMessage(0, 0, name, MessageSeverity.INFO, null);
+            return null;
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    context.commit();
+
+    context = newBuildContext();
+    Assert.assertFalse(context.isEscalated());
+    Assert.assertEquals(2000, context.oldState.getOutputs().size());
+    Assert.assertEquals(1000, context.oldState.getResourceMessages().size());
+    for (int i = 0; i < 1000; i++) {
+      File input = new File(basedir, Integer.toString(i)).getCanonicalFile();
+      Assert.assertEquals(2, context.oldState.getResourceOutputs(input).size());
+    }
+  }
+
+  @Test
+  public void testRegisterAndProcessInputs_executor() throws Exception {
+    File basedir = temp.newFolder("basedir");
+    final File outputdir = temp.newFolder("outputdir");
+    for (int i = 0; i < 100; i++) {
+      temp.newFile("basedir/" + i);
+    }
+
+    InputProcessor processor = new InputProcessor() {
+      @Override
+      public void process(Resource<File> input) throws IOException {
+        String name = input.getResource().getName();
+        input.associateOutput(new File(outputdir, name + ".out")).newOutputStream().close();
+        input.addMessage(0, 0, name, MessageSeverity.INFO, null);
+      }
+    };
+
+    TestBuildContext context = newBuildContext();
+    Assert.assertEquals(100,
+        context.registerAndProcessInputs(basedir, null, null, null, processor).size());
+    context.commit();
+
+    context = newBuildContext();
+    Assert.assertEquals(100, context.oldState.getOutputs().size());
+    Assert.assertEquals(100, context.oldState.getResourceMessages().size());
+
+    // only modified inputs are processed
+    Files.append("modified", new File(basedir, "7"), Charsets.UTF_8);
+    Collection<DefaultResource<File>> processed =
+        context.registerAndProcessInputs(basedir, null, null, null, processor);
+    Assert.assertEquals(1, processed.size());
+    Assert.assertEquals(new File(basedir, "7").getCanonicalFile(),
+        processed.iterator().next().getResource());
+    context.commit();
+
+    context = newBuildContext();
+    Assert.assertEquals(100, context.oldState.getOutputs().size());
+  }
+
+  @Test
+  public void testRegisterAndProcessInputs_executorFailure() throws Exception {
+    File basedir = temp.newFolder("basedir");
+    for (int i = 0; i < 10; i++) {
+      temp.newFile("basedir/" + i);
+    }
+
+    TestBuildContext context = newBuildContext();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      context.registerAndProcessInputs(basedir, null, null, executor, new InputProcessor() {
+        @Override
+        public void process(Resource<File> input) throws IOException {
+          if ("3".equals(input.getResource().getName())) {
+            throw new IOException("3");
+          }
+        }
+      });
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertEquals("3", e.getMessage());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testRegisterAndProcessInputs_executorDoesNotRunTasks() throws Exception {
+    File basedir = temp.newFolder("basedir");
+    for (int i = 0; i < 10; i++) {
+      temp.newFile("basedir/" + i);
+    }
+
+    // saturated or nested executors must not block processing, the caller runs pending inputs
+    final List<Runnable> queued = new ArrayList<>();
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        queued.add(command);
+      }
+    };
+    final List<File> processed = Collections.synchronizedList(new ArrayList<File>());
+    TestBuildContext context = newBuildContext();
+    context.registerAndProcessInputs(basedir, null, null, executor, new InputProcessor() {
+      @Override
+      public void process(Resource<File> input) throws IOException {
+        processed.add(input.getResource());
+      }
+    });
+    Assert.assertEquals(10, queued.size());
+    Assert.assertEquals(10, processed.size());
+  }
+
+  @Test
+  public void testRegisterAndProcessInputs_completionOrder() throws Exception {
+    File basedir = temp.newFolder("basedir");
+    final File outputdir = temp.newFolder("outputdir");
+    for (int i = 0; i < 10; i++) {
+      temp.newFile("basedir/" + i);
+      temp.newFile("outputdir/" + i + ".out");
+    }
+    InputProcessor processor = new InputProcessor() {
+      @Override
+      public void process(Resource<File> input) throws IOException {
+        String name = input.getResource().getName();
+        input.associateOutput(new File(outputdir, name + ".out"));
+        input.addMessage(0, 0, name, MessageSeverity.INFO, null);
+      }
+    };
+
+    TestBuildContext context = newBuildContext();
+    context.registerAndProcessInputs(basedir, null, null, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    }, processor);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    context.state.storeTo(expected);
+
+    // executor runs inputs in reverse registration order
+    final List<Runnable> queued = new ArrayList<>();
+    context = newBuildContext();
+    context.registerAndProcessInputs(basedir, null, null, new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        queued.add(0, command);
+        if (queued.size() == 10) {
+          for (Runnable task : queued) {
+            task.run();
+          }
+        }
+      }
+    }, processor);
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    context.state.storeTo(actual);
+
+    Assert.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
 }
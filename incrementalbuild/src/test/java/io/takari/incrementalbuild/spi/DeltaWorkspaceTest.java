@@ -90,6 +90,26 @@ public class DeltaWorkspaceTest extends AbstractBuildContextTest {
     }
   }
 
+  @Test
+  public void testUnreportedInputs_lazy() throws Exception {
+    File basedir = temp.newFolder("basedir");
+    File a = temp.newFile("basedir/a").getCanonicalFile();
+    File otherdir = temp.newFolder("otherdir");
+    File b = temp.newFile("otherdir/b").getCanonicalFile();
+    TestBuildContext ctx = newBuildContext();
+    ctx.registerAndProcessInputs(basedir, null, null);
+    ctx.registerAndProcessInputs(otherdir, null, null);
+    ctx.commit();
+
+    // only previous build state of inputs under the walked basedir is decoded
+    ctx = newBuildContext(new DeltaWorkspace());
+    assertEquals(0, toList(ctx.registerAndProcessInputs(basedir, null, null)).size());
+    assertEquals(ResourceStatus.UNMODIFIED, ctx.getResourceStatus(a));
+    MappedBuildContextState oldState = (MappedBuildContextState) ctx.oldState;
+    Assert.assertTrue(oldState.isDecoded(a));
+    Assert.assertFalse(oldState.isDecoded(b));
+  }
+
   @Test
   public void testGetRegisteredInputs() throws Exception {
     DeltaWorkspace workspace;
@@ -0,0 +1,54 @@
+package io.takari.incrementalbuild.spi;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileMatcherTest {
+  @Rule
+  public final TemporaryFolder temp = new TemporaryFolder();
+
+  private static Collection<String> list(String... strings) {
+    return Arrays.asList(strings);
+  }
+
+  @Test
+  public void testMatchesDirectory_excludes() throws Exception {
+    File basedir = temp.getRoot();
+    FileMatcher matcher = FileMatcher.matcher(basedir, Collections.<String>emptyList(),
+        list("**/node_modules/**", "target/", "**/*.txt"));
+
+    Assert.assertFalse(matcher.matchesDirectory(new File(basedir, "node_modules")));
+    Assert.assertFalse(matcher.matchesDirectory(new File(basedir, "a/node_modules")));
+    Assert.assertFalse(matcher.matchesDirectory(new File(basedir, "target")));
+    Assert.assertTrue(matcher.matchesDirectory(new File(basedir, "node_modules_")));
+    Assert.assertTrue(matcher.matchesDirectory(new File(basedir, "src")));
+
+    // consistent with file matches
+    Assert.assertFalse(matcher.matches(new File(basedir, "a/node_modules/b/c.js")));
+    Assert.assertFalse(matcher.matches(new File(basedir, "target/c.js")));
+    Assert.assertTrue(matcher.matches(new File(basedir, "src/c.js")));
+  }
+
+  @Test
+  public void testMatchesDirectory_excludeEverything() throws Exception {
+    File basedir = temp.getRoot();
+    FileMatcher matcher = FileMatcher.matcher(basedir, null, list("**"));
+    Assert.assertFalse(matcher.matchesDirectory(new File(basedir, "src")));
+  }
+
+  @Test
+  public void testMatchesDirectory_absoluteMatcher() throws Exception {
+    File basedir = new File(temp.getRoot(), "basedir");
+    FileMatcher matcher = FileMatcher.absoluteMatcher(basedir, list("**/*.java"), null);
+    Assert.assertTrue(matcher.matchesDirectory(temp.getRoot()));
+    Assert.assertTrue(matcher.matchesDirectory(new File(basedir, "src")));
+    Assert.assertFalse(matcher.matchesDirectory(new File(temp.getRoot(), "other")));
+  }
+}
@@ -0,0 +1,123 @@
+package io.takari.incrementalbuild.spi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.takari.incrementalbuild.workspace.Workspace.FileVisitor;
+import io.takari.incrementalbuild.workspace.Workspace.ResourceStatus;
+
+public class FilesystemWorkspaceTest {
+  @Rule
+  public final TemporaryFolder temp = new TemporaryFolder();
+
+  private List<String> walk(File basedir) throws IOException {
+    return walk(new FilesystemWorkspace(), basedir);
+  }
+
+  private List<String> walk(FilesystemWorkspace workspace, File basedir) throws IOException {
+    final String prefix = basedir.getPath() + File.separatorChar;
+    final List<String> visited = new ArrayList<>();
+    workspace.walk(basedir, new FileVisitor() {
+      @Override
+      public void visit(File file, long lastModified, long length, ResourceStatus status) {
+        Assert.assertEquals(ResourceStatus.NEW, status);
+        FileAttributes attrs = FileAttributes.read(file);
+        Assert.assertEquals(attrs.lastModified, lastModified);
+        Assert.assertEquals(attrs.length, length);
+        visited.add(file.getPath().substring(prefix.length()).replace(File.separatorChar, '/'));
+      }
+    });
+    return visited;
+  }
+
+  @Test
+  public void testWalk_order() throws Exception {
+    File basedir = temp.newFolder();
+    for (String path : Arrays.asList("c", "a/b/2", "a/b/1", "a/c", "b/a", "a0")) {
+      File file = new File(basedir, path);
+      file.getParentFile().mkdirs();
+      file.createNewFile();
+    }
+
+    List<String> expected = Arrays.asList("a/b/1", "a/b/2", "a/c", "a0", "b/a", "c");
+    Assert.assertEquals(expected, walk(basedir));
+    Assert.assertEquals(expected, walk(basedir));
+  }
+
+  private static abstract class FilteringVisitor implements FileVisitor, DirectoryFilter {}
+
+  @Test
+  public void testWalk_directoryFilter() throws Exception {
+    File basedir = temp.newFolder();
+    for (String path : Arrays.asList("a/1", "b/1", "b/c/1")) {
+      File file = new File(basedir, path);
+      file.getParentFile().mkdirs();
+      file.createNewFile();
+    }
+
+    final File skipped = new File(basedir, "b");
+    final List<File> visited = new ArrayList<>();
+    new FilesystemWorkspace().walk(basedir, new FilteringVisitor() {
+      @Override
+      public boolean acceptDirectory(File directory) {
+        return !skipped.equals(directory);
+      }
+
+      @Override
+      public void visit(File file, long lastModified, long length, ResourceStatus status) {
+        visited.add(file);
+      }
+    });
+    Assert.assertEquals(Arrays.asList(new File(basedir, "a/1")), visited);
+  }
+
+  @Test
+  public void testWalk_cache() throws Exception {
+    File basedir = temp.newFolder();
+    File a = new File(basedir, "a");
+    File b = new File(basedir, "b");
+    Files.write(a.toPath(), new byte[] {1});
+    long old = System.currentTimeMillis() - 10000;
+    basedir.setLastModified(old);
+
+    FileTreeCache cache = new FileTreeCache();
+    FilesystemWorkspace workspace = new FilesystemWorkspace(cache);
+    Assert.assertEquals(Arrays.asList("a"), walk(workspace, basedir));
+
+    // files added by other tools change directory timestamp
+    Files.write(b.toPath(), new byte[] {1});
+    Assert.assertEquals(Arrays.asList("a", "b"), walk(workspace, basedir));
+    basedir.setLastModified(old + 1000);
+    Assert.assertEquals(Arrays.asList("a", "b"), walk(workspace, basedir));
+    Assert.assertEquals(Arrays.asList("a", "b"), walk(workspace, basedir));
+
+    // files modified in place by other tools do not change directory timestamp
+    Files.write(b.toPath(), new byte[] {1, 2, 3});
+    basedir.setLastModified(old + 1000);
+    Assert.assertEquals(Arrays.asList("a", "b"), walk(workspace, basedir));
+
+    // files written and deleted through the workspace invalidate the cache
+    try (OutputStream os = workspace.newOutputStream(a)) {
+      os.write(new byte[] {1, 2});
+    }
+    workspace.deleteFile(b);
+    basedir.setLastModified(old + 1000);
+    Assert.assertEquals(Arrays.asList("a"), walk(workspace, basedir));
+  }
+
+  @Test
+  public void testWalk_notDirectory() throws Exception {
+    Assert.assertEquals(Arrays.asList(), walk(new File(temp.getRoot(), "does-not-exist")));
+    Assert.assertEquals(Arrays.asList(), walk(temp.newFile()));
+  }
+}
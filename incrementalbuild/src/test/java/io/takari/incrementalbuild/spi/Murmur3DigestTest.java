@@ -0,0 +1,63 @@
+package io.takari.incrementalbuild.spi;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.hash.Hashing;
+
+public class Murmur3DigestTest {
+
+  private static byte[] guava(byte[] bytes) {
+    return Hashing.murmur3_128().hashBytes(bytes).asBytes();
+  }
+
+  @Test
+  public void testGuavaCompatibility() throws Exception {
+    Random random = new Random(1);
+    for (int length = 0; length < 100; length++) {
+      byte[] bytes = new byte[length];
+      random.nextBytes(bytes);
+
+      Assert.assertArrayEquals(guava(bytes), new Murmur3Digest().digest(bytes));
+
+      MessageDigest digest = new Murmur3Digest();
+      for (byte b : bytes) {
+        digest.update(b);
+      }
+      Assert.assertArrayEquals(guava(bytes), digest.digest());
+    }
+  }
+
+  @Test
+  public void testChunkedUpdate() throws Exception {
+    byte[] bytes = new byte[1000];
+    new Random(2).nextBytes(bytes);
+    byte[] expected = guava(bytes);
+
+    MessageDigest digest = new Murmur3Digest();
+    for (int chunk = 1; chunk < 40; chunk++) {
+      for (int offset = 0; offset < bytes.length; offset += chunk) {
+        digest.update(bytes, offset, Math.min(chunk, bytes.length - offset));
+      }
+      // digest() resets the state
+      Assert.assertArrayEquals(expected, digest.digest());
+    }
+  }
+
+  @Test
+  public void testClone() throws Exception {
+    byte[] bytes = new byte[37];
+    new Random(3).nextBytes(bytes);
+
+    MessageDigest digest = new Murmur3Digest();
+    digest.update(bytes, 0, 21);
+    MessageDigest clone = (MessageDigest) digest.clone();
+    digest.update(bytes, 21, 16);
+    clone.update(bytes, 21, 16);
+    Assert.assertArrayEquals(guava(bytes), digest.digest());
+    Assert.assertArrayEquals(guava(bytes), clone.digest());
+  }
+}
@@ -0,0 +1,170 @@
+package io.takari.incrementalbuild.spi;
+
+import static io.takari.maven.testing.TestResources.touch;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.WatchEvent;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.takari.incrementalbuild.ResourceStatus;
+import io.takari.incrementalbuild.workspace.Workspace.Mode;
+
+public class WatchingWorkspaceTest extends AbstractBuildContextTest {
+
+  private FileWatcher watcher;
+
+  @Before
+  public void setUp() throws IOException {
+    watcher = new FileWatcher();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    watcher.close();
+  }
+
+  private TestBuildContext newBuildContext(Mode expectedMode) {
+    File stateFile = new File(temp.getRoot(), "buildstate.ctx");
+    WatchingWorkspace workspace = new WatchingWorkspace(watcher, stateFile);
+    assertEquals(expectedMode, workspace.getMode());
+    return new TestBuildContext(workspace, stateFile,
+        Collections.<String, Serializable>emptyMap());
+  }
+
+  private void awaitChange(File file, WatchEvent.Kind<?> kind) throws InterruptedException {
+    // watch events are delivered asynchronously
+    for (int i = 0; i < 300 && watcher.getChange(file.toPath()) != kind; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals("watch event " + file, kind, watcher.getChange(file.toPath()));
+  }
+
+  @Test
+  public void testDelta() throws Exception {
+    File basedir = temp.newFolder("basedir").getCanonicalFile();
+    File a = temp.newFile("basedir/a").getCanonicalFile();
+
+    TestBuildContext ctx;
+
+    // initial build
+    ctx = newBuildContext(Mode.NORMAL);
+    assertEquals(1, toList(ctx.registerAndProcessInputs(basedir, null, null)).size());
+    ctx.commit();
+
+    // no-change rebuild
+    ctx = newBuildContext(Mode.DELTA);
+    assertEquals(0, toList(ctx.registerAndProcessInputs(basedir, null, null)).size());
+    assertEquals(1, toList(ctx.getRegisteredInputs()).size());
+    ctx.commit();
+
+    // modified and new inputs, including files in a new directory
+    touch(a);
+    File b = temp.newFile("basedir/b").getCanonicalFile();
+    File c = new File(temp.newFolder("basedir", "dir"), "c").getCanonicalFile();
+    c.createNewFile();
+    awaitChange(a, ENTRY_MODIFY);
+    awaitChange(b, ENTRY_CREATE);
+    awaitChange(c, ENTRY_CREATE);
+    ctx = newBuildContext(Mode.DELTA);
+    assertEquals(3, toList(ctx.registerAndProcessInputs(basedir, null, null)).size());
+    assertEquals(3, toList(ctx.getRegisteredInputs()).size());
+    ctx.commit();
+
+    // removed input
+    b.delete();
+    awaitChange(b, ENTRY_DELETE);
+    ctx = newBuildContext(Mode.DELTA);
+    assertEquals(0, toList(ctx.registerAndProcessInputs(basedir, null, null)).size());
+    assertEquals(ResourceStatus.REMOVED, ctx.getResourceStatus(b));
+    assertEquals(3, toList(ctx.getRegisteredInputs()).size());
+    ctx.commit();
+  }
+
+  @Test
+  public void testChangesRightBeforeBuild() throws Exception {
+    File basedir = temp.newFolder("basedir").getCanonicalFile();
+    File a = temp.newFile("basedir/a").getCanonicalFile();
+
+    TestBuildContext ctx = newBuildContext(Mode.NORMAL);
+    ctx.registerAndProcessInputs(basedir, null, null);
+    ctx.commit();
+
+    // the build waits until watch events of changes made before it started are delivered
+    touch(a);
+    temp.newFile("basedir/b");
+    ctx = newBuildContext(Mode.DELTA);
+    assertEquals(2, toList(ctx.registerAndProcessInputs(basedir, null, null)).size());
+    ctx.commit();
+
+    // cookie files are not written to watched directories nor reported as changes
+    assertEquals(2, basedir.list().length);
+    long lastModified = basedir.lastModified();
+    ctx = newBuildContext(Mode.DELTA);
+    assertEquals(0, toList(ctx.registerAndProcessInputs(basedir, null, null)).size());
+    assertEquals(2, toList(ctx.getRegisteredInputs()).size());
+    ctx.commit();
+    assertEquals(lastModified, basedir.lastModified());
+    assertEquals(2, basedir.list().length);
+  }
+
+  @Test
+  public void testUncommittedBuild() throws Exception {
+    File basedir = temp.newFolder("basedir").getCanonicalFile();
+    File a = temp.newFile("basedir/a").getCanonicalFile();
+
+    TestBuildContext ctx = newBuildContext(Mode.NORMAL);
+    ctx.registerAndProcessInputs(basedir, null, null);
+    ctx.commit();
+
+    newBuildContext(Mode.DELTA).registerAndProcessInputs(basedir, null, null);
+
+    // changes are reported until the build that saw them commits
+    touch(a);
+    awaitChange(a, ENTRY_MODIFY);
+    ctx = newBuildContext(Mode.DELTA);
+    assertEquals(1, toList(ctx.registerAndProcessInputs(basedir, null, null)).size());
+
+    ctx = newBuildContext(Mode.DELTA);
+    assertEquals(1, toList(ctx.registerAndProcessInputs(basedir, null, null)).size());
+    ctx.commit();
+
+    ctx = newBuildContext(Mode.DELTA);
+    assertEquals(0, toList(ctx.registerAndProcessInputs(basedir, null, null)).size());
+    ctx.commit();
+  }
+
+  @Test
+  public void testDeletedDirectory() throws Exception {
+    File basedir = temp.newFolder("basedir").getCanonicalFile();
+    File dir = temp.newFolder("basedir", "dir").getCanonicalFile();
+    File a = new File(dir, "a");
+    a.createNewFile();
+
+    TestBuildContext ctx = newBuildContext(Mode.NORMAL);
+    assertEquals(1, toList(ctx.registerAndProcessInputs(basedir, null, null)).size());
+    ctx.commit();
+
+    // content of moved or deleted directories is not known, falls back to full walk
+    a.delete();
+    dir.delete();
+    awaitChange(dir, ENTRY_DELETE);
+    ctx = newBuildContext(Mode.NORMAL);
+    assertEquals(0, toList(ctx.registerAndProcessInputs(basedir, null, null)).size());
+    assertEquals(ResourceStatus.REMOVED, ctx.getResourceStatus(a));
+    ctx.commit();
+
+    ctx = newBuildContext(Mode.DELTA);
+    assertEquals(0, toList(ctx.registerAndProcessInputs(basedir, null, null)).size());
+    ctx.commit();
+  }
+}